@@ -0,0 +1,28 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Non blocking variant of the build state calls of {@link TfsBuildFacade}.
+ *
+ * Calls return at once and run in the order they were made, failures are logged and reported
+ * through the returned future.
+ */
+public interface AsyncTfsBuildFacade {
+
+    ListenableFuture<Void> startBuild();
+
+    ListenableFuture<Void> finishBuild();
+
+    ListenableFuture<Void> startAllTaskRecords();
+
+    ListenableFuture<Void> finishAllTaskRecords();
+
+    /**
+     * The blocking facade the calls are made on
+     */
+    TfsBuildFacade getFacade();
+}
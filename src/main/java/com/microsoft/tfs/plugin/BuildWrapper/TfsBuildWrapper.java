@@ -5,6 +5,7 @@ package com.microsoft.tfs.plugin.BuildWrapper;
 
 import com.microsoft.tfs.plugin.Notifier.TfsBuildNotifier;
 import com.microsoft.tfs.plugin.*;
+import com.microsoft.tfs.plugin.impl.AsyncTfsBuildFacadeImpl;
 import com.microsoft.tfs.plugin.impl.TfsBuildFacadeFactoryImpl;
 import com.microsoft.tfs.plugin.impl.TfsClient;
 import com.microsoft.tfs.plugin.impl.TfsClientFactoryImpl;
@@ -20,12 +21,14 @@ import hudson.util.DescribableList;
 import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 /**
@@ -38,9 +41,15 @@ public class TfsBuildWrapper extends BuildWrapper {
 
     private static final Logger logger = Logger.getLogger(TfsBuildWrapper.class.getName());
 
+    /*
+     * Directory under the build's root dir where the log appender spills lines TFS has not taken yet
+     */
+    private static final String LOG_SPILL_DIR = "tfs-log-spill";
+
     private transient TfsBuildFacadeFactory tfsBuildFacadeFactory;
     private transient TfsClientFactory tfsClientFactory;
     private transient TfsBuildFacade tfsBuildFacade;
+    private transient Executor tfsCallExecutor;
 
     @DataBoundConstructor
     public TfsBuildWrapper() {
@@ -73,18 +82,46 @@ public class TfsBuildWrapper extends BuildWrapper {
                 }
 
                 if (tfsBuildFacade == null) {
-                    String msg = "Build is not queue on Microsoft TFS, no log will be send to Microsoft TFS.\n";
+                    String msg = "Build is not queued on Microsoft TFS, no log will be sent to Microsoft TFS.\n";
                     logger.info(msg);
                     writeQuietly(os, msg.getBytes(Charset.defaultCharset()));
 
                     return os;
                 }
 
-                tfsBuildFacade.startBuild();
-                tfsBuildFacade.startAllTaskRecords();
+                // the notifier picks the facade up from here at the end of the build
+                TfsBuildState state = tfsBuildFacade.getState();
+                if (state != null) {
+                    build.addAction(state);
+                }
+
+                LogJournal journal = null;
+                try {
+                    journal = LogJournal.open(LogJournalRecovery.getJournalDir(build));
+                    journal.describe(build.getProject().getFullName(), build.getNumber(),
+                            tfsBuildFacade.getTaskLogDestination(), tfsBuildFacade.getJobLogDestination());
+                } catch (IOException e) {
+                    String msg = String.format("Failed to create log journal: %s, logs will be sent to Microsoft TFS "
+                            + "without retries.%n", e.getMessage());
+                    logger.warning(msg);
+                    writeQuietly(os, msg.getBytes(Charset.defaultCharset()));
+
+                    if (journal != null) {
+                        journal.delete();
+                        journal = null;
+                    }
+                }
+
+                // the build does not wait for TFS to mark it started, failures are logged
+                AsyncTfsBuildFacade asyncFacade = getAsyncFacade(tfsBuildFacade, config.getServerUrl());
+                asyncFacade.startBuild();
+                asyncFacade.startAllTaskRecords();
 
                 // Post logs to TFS server's build console
-                TfsRemoteConsoleLogAppender appender = new TfsRemoteConsoleLogAppender(os, tfsBuildFacade);
+                TfsRemoteConsoleLogAppender appender = new TfsRemoteConsoleLogAppender(os, build.getCharset(), tfsBuildFacade,
+                        new File(build.getRootDir(), LOG_SPILL_DIR), journal,
+                        new LogBatchPolicy(config.getLogBatchMaxLines(), config.getLogBatchMaxBytes(),
+                                config.getLogBatchMaxLingerMillis(), config.getLogBatchTargetLatencyMillis()));
                 appender.start();
 
                 return appender;
@@ -128,6 +165,21 @@ public class TfsBuildWrapper extends BuildWrapper {
         return tfsClientFactory;
     }
 
+    /**
+     * Run the TFS state calls on this executor, instead of the shared lane of the TFS build
+     */
+    public void setTfsCallExecutor(Executor executor) {
+        this.tfsCallExecutor = executor;
+    }
+
+    private AsyncTfsBuildFacade getAsyncFacade(TfsBuildFacade facade, String serverUrl) {
+        if (this.tfsCallExecutor == null) {
+            return AsyncTfsBuildFacadeImpl.forBuild(facade, serverUrl);
+        }
+
+        return new AsyncTfsBuildFacadeImpl(facade, tfsCallExecutor);
+    }
+
     private TfsClient getClient(TfsConfiguration config) throws URISyntaxException {
         return getTfsClientFactory().getValidatedClient(config.getServerUrl(), config.getUsername(), config.getPassword());
     }
@@ -0,0 +1,76 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plugin wide pool of fixed size byte chunks used to buffer console lines on the heap.
+ *
+ * Builds come and go all the time, pooling the chunks keeps the log buffers from producing
+ * garbage for every line.  At most {@code maxPooled} free chunks are retained.
+ */
+public final class ByteChunkPool {
+
+    public static final String CHUNK_SIZE_PROPERTY = ByteChunkPool.class.getName() + ".chunkSize";
+    public static final String MAX_POOLED_PROPERTY = ByteChunkPool.class.getName() + ".maxPooled";
+
+    private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    private static final int DEFAULT_MAX_POOLED = 256;
+
+    private static final ByteChunkPool instance = new ByteChunkPool(
+            Integer.getInteger(CHUNK_SIZE_PROPERTY, DEFAULT_CHUNK_SIZE),
+            Integer.getInteger(MAX_POOLED_PROPERTY, DEFAULT_MAX_POOLED));
+
+    private final int chunkSize;
+    private final int maxPooled;
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    public ByteChunkPool(int chunkSize, int maxPooled) {
+        this.chunkSize = chunkSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return the pool shared by all builds
+     */
+    public static ByteChunkPool get() {
+        return instance;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return a chunk of {@link #getChunkSize()} bytes, contents undefined
+     */
+    public byte[] acquire() {
+        byte[] chunk = free.poll();
+        if (chunk == null) {
+            return new byte[chunkSize];
+        }
+
+        freeCount.decrementAndGet();
+        return chunk;
+    }
+
+    /**
+     * Hand a chunk back to the pool, chunks of a foreign size are left to the GC
+     */
+    public void release(byte[] chunk) {
+        if (chunk.length != chunkSize) {
+            return;
+        }
+
+        if (freeCount.incrementAndGet() <= maxPooled) {
+            free.offer(chunk);
+        } else {
+            freeCount.decrementAndGet();
+        }
+    }
+}
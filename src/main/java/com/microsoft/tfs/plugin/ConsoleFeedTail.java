@@ -0,0 +1,76 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+/**
+ * The most recent console lines of a build, for the live console feed.
+ *
+ * The build thread copies every line into a fixed ring of slots, the feed takes whatever is new at
+ * its own pace.  Lines that scroll out of the ring before the feed gets to them are only counted,
+ * the archived logs still get every line.  Slots keep their arrays, so adding a line does not
+ * allocate once the slots have grown to the usual line length.
+ */
+public class ConsoleFeedTail {
+
+    private static final int INITIAL_SLOT_SIZE = 256;
+
+    /* guarded by this */
+    private final byte[][] slots;
+    private final int[] lengths;
+
+    /* guarded by this, number of lines added and number of lines taken or skipped by the feed */
+    private long added;
+    private long taken;
+
+    /**
+     * @param capacity number of recent lines kept
+     */
+    public ConsoleFeedTail(int capacity) {
+        this.slots = new byte[Math.max(1, capacity)][];
+        this.lengths = new int[slots.length];
+    }
+
+    public synchronized void add(byte[] b, int off, int len) {
+        int slot = (int) (added % slots.length);
+        if (slots[slot] == null || slots[slot].length < len) {
+            slots[slot] = new byte[Math.max(len, INITIAL_SLOT_SIZE)];
+        }
+
+        System.arraycopy(b, off, slots[slot], 0, len);
+        lengths[slot] = len;
+        added++;
+    }
+
+    /**
+     * @return true if there are lines the feed has not taken yet
+     */
+    public synchronized boolean hasNewLines() {
+        return added > taken;
+    }
+
+    /**
+     * Append the lines added since the last call to the batch, oldest first, after a note about
+     * the lines that were skipped if any
+     *
+     * @return number of lines that scrolled out of the tail since the last call
+     */
+    public synchronized long drainTo(LogBatch batch) {
+        long from = Math.max(taken, added - slots.length);
+        long skipped = from - taken;
+
+        if (skipped > 0) {
+            byte[] note = String.format("... %d lines skipped in the live console, see the build log for them ...",
+                    skipped).getBytes(LogBatch.UTF8);
+            batch.append(note, 0, note.length);
+        }
+
+        for (long line = from; line < added; line++) {
+            int slot = (int) (line % slots.length);
+            batch.append(slots[slot], 0, lengths[slot]);
+        }
+
+        taken = added;
+        return skipped;
+    }
+}
@@ -0,0 +1,82 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Re-encodes console lines of a build that does not write UTF-8 to UTF-8, the encoding the logs are uploaded in.
+ *
+ * The decoder, the encoder and their buffers are kept from line to line and only grow for longer lines, so a
+ * line is re-encoded without allocating.  Malformed and unmappable input is replaced, like
+ * {@link Charset#decode(ByteBuffer)} does.  Not thread safe, the build thread writing the console is its only user.
+ */
+public final class ConsoleLineTranscoder {
+
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    private final CharsetDecoder decoder;
+    private final CharsetEncoder encoder;
+
+    private ByteBuffer in = ByteBuffer.allocate(0);
+    private CharBuffer chars = CharBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer out = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    public ConsoleLineTranscoder(Charset charset) {
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.encoder = LogBatch.UTF8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Re-encode a line, the result is in {@link #array()} until the next call
+     *
+     * @return length of the UTF-8 line
+     */
+    public int transcode(byte[] b, int len) {
+        // the console hands over the same array line after line, wrap it again only when it changes
+        if (in.array() != b) {
+            in = ByteBuffer.wrap(b);
+        }
+        in.limit(len).position(0);
+
+        int maxChars = (int) Math.ceil(len * (double) decoder.maxCharsPerByte());
+        if (chars.capacity() < maxChars) {
+            chars = CharBuffer.allocate(maxChars);
+        }
+        chars.clear();
+
+        decoder.reset();
+        decoder.decode(in, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+
+        int maxBytes = (int) Math.ceil(chars.remaining() * (double) encoder.maxBytesPerChar());
+        if (out.capacity() < maxBytes) {
+            out = ByteBuffer.allocate(maxBytes);
+        }
+        out.clear();
+
+        encoder.reset();
+        encoder.encode(chars, out, true);
+        encoder.flush(out);
+
+        return out.position();
+    }
+
+    /**
+     * @return the array holding the last line re-encoded, from index 0
+     */
+    public byte[] array() {
+        return out.array();
+    }
+}
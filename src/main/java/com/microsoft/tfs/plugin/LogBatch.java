@@ -0,0 +1,143 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A batch of UTF-8 encoded console lines on its way to TFS.
+ *
+ * Lines are stored back to back, each one terminated by a newline, so the whole batch is a ready made
+ * log payload.  The batch is meant to be cleared and reused by the shipper, the backing arrays only
+ * grow and are never reallocated for a batch that fits.
+ */
+public class LogBatch {
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final byte NEW_LINE = '\n';
+
+    private byte[] data;
+    private int length;
+
+    /*
+     * lineEnds[i] is the offset of the newline that terminates line i
+     */
+    private int[] lineEnds;
+    private int lineCount;
+
+    public LogBatch() {
+        this(64 * 1024, 256);
+    }
+
+    public LogBatch(int initialBytes, int initialLines) {
+        this.data = new byte[initialBytes];
+        this.lineEnds = new int[initialLines];
+    }
+
+    public void clear() {
+        length = 0;
+        lineCount = 0;
+    }
+
+    /**
+     * Append a line of {@code len} bytes read from the buffer's current position
+     */
+    public void append(ByteBuffer src, int len) {
+        ensureCapacity(len + 1);
+
+        src.get(data, length, len);
+        terminateLine(len);
+    }
+
+    /**
+     * Append a line copied from the array
+     */
+    public void append(byte[] src, int off, int len) {
+        ensureCapacity(len + 1);
+
+        System.arraycopy(src, off, data, length, len);
+        terminateLine(len);
+    }
+
+    /**
+     * @return number of lines in the batch
+     */
+    public int size() {
+        return lineCount;
+    }
+
+    /**
+     * @return number of bytes in the batch, newlines included
+     */
+    public int byteSize() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return lineCount == 0;
+    }
+
+    /**
+     * Backing array, only the first {@link #byteSize()} bytes are valid
+     */
+    public byte[] array() {
+        return data;
+    }
+
+    public int lineStart(int i) {
+        return i == 0 ? 0 : lineEnds[i - 1] + 1;
+    }
+
+    /**
+     * @return offset of the newline terminating line i
+     */
+    public int lineEnd(int i) {
+        return lineEnds[i];
+    }
+
+    /**
+     * @return the whole batch as a log payload, without copying it
+     */
+    public InputStream newInputStream() {
+        return new ByteArrayInputStream(data, 0, length);
+    }
+
+    /**
+     * Decode the lines, only for APIs that insist on strings
+     */
+    public List<String> toStrings() {
+        List<String> lines = new ArrayList<String>(lineCount);
+        for (int i = 0; i < lineCount; i++) {
+            int start = lineStart(i);
+            lines.add(new String(data, start, lineEnds[i] - start, UTF8));
+        }
+
+        return lines;
+    }
+
+    private void terminateLine(int len) {
+        length += len;
+        data[length] = NEW_LINE;
+
+        if (lineCount == lineEnds.length) {
+            lineEnds = Arrays.copyOf(lineEnds, lineEnds.length * 2);
+        }
+        lineEnds[lineCount++] = length;
+
+        length++;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+        }
+    }
+}
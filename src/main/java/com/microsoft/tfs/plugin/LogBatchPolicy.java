@@ -0,0 +1,107 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Decides when the log appender should cut a batch and how big the batch should be.
+ *
+ * A batch is flushed on whichever comes first: the line limit, the byte limit or the linger time
+ * of the oldest pending line.  The line limit adapts to the measured appendJobLog round trip
+ * (additive increase, multiplicative decrease), so batches grow while the server keeps up and
+ * shrink quickly once it slows down.
+ *
+ * Batches only feed the archived logs, the live console feed is posted on its own schedule, so the
+ * defaults favor large batches over latency.
+ */
+public class LogBatchPolicy {
+
+    private static final Logger logger = Logger.getLogger(LogBatchPolicy.class.getName());
+
+    public static final int DEFAULT_MAX_LINES = 10000;
+    public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+    public static final int DEFAULT_MAX_LINGER_MILLIS = 2000;
+    public static final int DEFAULT_TARGET_LATENCY_MILLIS = 2000;
+
+    private static final int MIN_LINES = 10;
+    private static final int INITIAL_LINES = 500;
+    private static final int ADDITIVE_INCREASE = 250;
+
+    private final int maxLines;
+    private final int maxBytes;
+    private final int maxLingerMillis;
+    private final long targetLatencyNanos;
+
+    private volatile int batchLines;
+
+    /**
+     * Non positive values fall back to the defaults, so an unset job configuration still works
+     *
+     * @param maxLines upper bound of lines per batch
+     * @param maxBytes upper bound of payload bytes per batch
+     * @param maxLingerMillis longest time a line waits before it is shipped
+     * @param targetLatencyMillis appendJobLog round trip above which the batch size is cut
+     */
+    public LogBatchPolicy(int maxLines, int maxBytes, int maxLingerMillis, int targetLatencyMillis) {
+        this.maxLines = Math.max(MIN_LINES, positiveOrDefault(maxLines, DEFAULT_MAX_LINES));
+        this.maxBytes = positiveOrDefault(maxBytes, DEFAULT_MAX_BYTES);
+        this.maxLingerMillis = positiveOrDefault(maxLingerMillis, DEFAULT_MAX_LINGER_MILLIS);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(positiveOrDefault(targetLatencyMillis, DEFAULT_TARGET_LATENCY_MILLIS));
+
+        this.batchLines = Math.min(INITIAL_LINES, this.maxLines);
+    }
+
+    public LogBatchPolicy() {
+        this(0, 0, 0, 0);
+    }
+
+    /**
+     * @return true if the pending lines should be shipped now instead of waiting for the linger timer
+     */
+    public boolean shouldFlush(int pendingLines, long pendingBytes) {
+        return pendingLines >= batchLines || pendingBytes >= maxBytes;
+    }
+
+    /**
+     * Feed back how long it took to ship a batch
+     *
+     * @param lines number of lines in the batch
+     * @param latencyNanos round trip of the appendJobLog call
+     */
+    public void onBatchShipped(int lines, long latencyNanos) {
+        int current = batchLines;
+        int next = current;
+
+        if (latencyNanos > targetLatencyNanos) {
+            next = Math.max(MIN_LINES, current / 2);
+        } else if (lines >= current) {
+            // only grow when the batch was actually full, a quiet build says nothing about server capacity
+            next = Math.min(maxLines, current + ADDITIVE_INCREASE);
+        }
+
+        if (next != current) {
+            batchLines = next;
+            logger.fine(String.format("Log batch size changed from %d to %d lines, last round trip %d ms",
+                    current, next, TimeUnit.NANOSECONDS.toMillis(latencyNanos)));
+        }
+    }
+
+    public int getBatchLines() {
+        return batchLines;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxLingerMillis() {
+        return maxLingerMillis;
+    }
+
+    private static int positiveOrDefault(int value, int defaultValue) {
+        return value > 0 ? value : defaultValue;
+    }
+}
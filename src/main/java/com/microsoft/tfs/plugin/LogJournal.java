@@ -0,0 +1,312 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Write-ahead journal of the console lines of one build.
+ *
+ * Every line is appended to the journal before it is shipped, and for every TFS log the journal
+ * remembers the offset up to which the server has confirmed the upload.  After a failed upload,
+ * a timeout or a master restart the upload resumes from that checkpoint, so no line is lost.
+ *
+ * The journal file holds the lines newline terminated, exactly like the task log payload, so a
+ * byte offset in the journal is a position in the log.  Checkpoints and the log destinations are
+ * kept in a properties file next to it, which is replaced atomically on every update.
+ */
+public class LogJournal {
+
+    private static final Logger logger = Logger.getLogger(LogJournal.class.getName());
+
+    private static final String JOURNAL_FILE = "journal.log";
+    private static final String STATE_FILE = "checkpoint.properties";
+
+    private static final String JOB_KEY = "job";
+    private static final String BUILD_KEY = "build";
+    private static final String LOGS_KEY = "logs";
+
+    private final File dir;
+    private final File journalFile;
+    private final File stateFile;
+
+    /*
+     * Checkpoints and destinations, guarded by itself so writing a checkpoint does not hold up appending lines
+     */
+    private final Properties state = new Properties();
+
+    private final OutputStream out;
+    private final RandomAccessFile reader;
+
+    private long length;
+    private boolean dirty;
+
+    /* guarded by this, for reading lines back */
+    private byte[] scratch = new byte[64 * 1024];
+
+    private LogJournal(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create log journal directory " + dir);
+        }
+
+        this.dir = dir;
+        this.journalFile = new File(dir, JOURNAL_FILE);
+        this.stateFile = new File(dir, STATE_FILE);
+
+        if (stateFile.isFile()) {
+            InputStream in = new FileInputStream(stateFile);
+            try {
+                state.load(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        this.out = new BufferedOutputStream(new FileOutputStream(journalFile, true), 64 * 1024);
+        this.reader = new RandomAccessFile(journalFile, "r");
+        this.length = journalFile.length();
+    }
+
+    /**
+     * Open the journal in the directory, creating it if it does not exist yet
+     */
+    public static LogJournal open(File dir) throws IOException {
+        return new LogJournal(dir);
+    }
+
+    /**
+     * @return the journal directories under root, those left behind are uploads that did not complete
+     */
+    public static List<File> list(File root) {
+        List<File> dirs = new ArrayList<File>();
+
+        File[] children = root.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (new File(child, STATE_FILE).isFile()) {
+                    dirs.add(child);
+                }
+            }
+        }
+
+        return dirs;
+    }
+
+    /**
+     * Append a line, it is newline terminated in the journal
+     *
+     * @return the journal length after the line
+     */
+    public synchronized long append(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        out.write(LogBatch.NEW_LINE);
+
+        length += len + 1;
+        dirty = true;
+
+        return length;
+    }
+
+    /**
+     * @return number of bytes appended so far
+     */
+    public synchronized long length() {
+        return length;
+    }
+
+    /**
+     * Hand the appended lines to the file system, so they survive a restart of Jenkins
+     */
+    public synchronized void flush() throws IOException {
+        if (dirty) {
+            out.flush();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Read whole lines starting at offset into the batch
+     *
+     * @param offset where to start, must be the start of a line
+     * @param limit do not read past this offset, must be the end of a line
+     * @return number of journal bytes read, newlines included
+     */
+    public synchronized int read(long offset, long limit, LogBatch batch, int maxLines, int maxBytes) throws IOException {
+        flush();
+
+        limit = Math.min(limit, length);
+
+        int consumed = 0;
+        int lines = 0;
+        while (lines < maxLines && batch.byteSize() < maxBytes && offset + consumed < limit) {
+            int toRead = (int) Math.min(scratch.length, limit - offset - consumed);
+            reader.seek(offset + consumed);
+            reader.readFully(scratch, 0, toRead);
+
+            int lineStart = 0;
+            for (int i = 0; i < toRead && lines < maxLines && batch.byteSize() < maxBytes; i++) {
+                if (scratch[i] == LogBatch.NEW_LINE) {
+                    batch.append(scratch, lineStart, i - lineStart);
+                    lineStart = i + 1;
+                    lines++;
+                }
+            }
+
+            if (lineStart == 0) {
+                if (toRead < scratch.length) {
+                    // limit is not at the end of a line, nothing more to read
+                    break;
+                }
+
+                // a line longer than the scratch buffer
+                scratch = new byte[scratch.length * 2];
+                continue;
+            }
+
+            consumed += lineStart;
+        }
+
+        return consumed;
+    }
+
+    /**
+     * Remember who the journal belongs to and where its lines go
+     */
+    public void describe(String jobFullName, int buildNumber, TfsLogDestination... destinations) throws IOException {
+        synchronized (state) {
+            state.setProperty(JOB_KEY, jobFullName);
+            state.setProperty(BUILD_KEY, String.valueOf(buildNumber));
+
+            StringBuilder logs = new StringBuilder();
+            for (TfsLogDestination destination : destinations) {
+                String prefix = logPrefix(destination.getLogId());
+                state.setProperty(prefix + "project", destination.getProjectId().toString());
+                state.setProperty(prefix + "plan", destination.getPlanId().toString());
+                if (destination.getPrefixTaskName() != null) {
+                    state.setProperty(prefix + "task", destination.getPrefixTaskName());
+                }
+
+                if (logs.length() > 0) {
+                    logs.append(',');
+                }
+                logs.append(destination.getLogId());
+            }
+            state.setProperty(LOGS_KEY, logs.toString());
+
+            save();
+        }
+    }
+
+    public String getJobFullName() {
+        synchronized (state) {
+            return state.getProperty(JOB_KEY);
+        }
+    }
+
+    public int getBuildNumber() {
+        synchronized (state) {
+            return Integer.parseInt(state.getProperty(BUILD_KEY, "0"));
+        }
+    }
+
+    public List<TfsLogDestination> getDestinations() {
+        synchronized (state) {
+            List<TfsLogDestination> destinations = new ArrayList<TfsLogDestination>();
+
+            String logs = state.getProperty(LOGS_KEY, "");
+            for (String logId : logs.split(",")) {
+                if (logId.length() == 0) {
+                    continue;
+                }
+
+                String prefix = logPrefix(Integer.parseInt(logId));
+                destinations.add(new TfsLogDestination(
+                        UUID.fromString(state.getProperty(prefix + "project")),
+                        UUID.fromString(state.getProperty(prefix + "plan")),
+                        Integer.parseInt(logId),
+                        state.getProperty(prefix + "task")));
+            }
+
+            return destinations;
+        }
+    }
+
+    /**
+     * @return offset up to which the log has been confirmed uploaded
+     */
+    public long getCheckpoint(int logId) {
+        synchronized (state) {
+            return Long.parseLong(state.getProperty(logPrefix(logId) + "offset", "0"));
+        }
+    }
+
+    /**
+     * Record that the log has been uploaded up to offset, persisted before returning
+     */
+    public void checkpoint(int logId, long offset) throws IOException {
+        synchronized (state) {
+            state.setProperty(logPrefix(logId) + "offset", String.valueOf(offset));
+            save();
+        }
+    }
+
+    /**
+     * Flush the lines to the file and release the file handles
+     */
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.warning("Failed to close log journal " + journalFile + ": " + e.getMessage());
+        }
+
+        try {
+            reader.close();
+        } catch (IOException e) {
+            logger.warning("Failed to close log journal " + journalFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Close and remove the journal, once everything has been uploaded
+     */
+    public synchronized void delete() {
+        close();
+
+        synchronized (state) {
+            if (!journalFile.delete() || !stateFile.delete() || !dir.delete()) {
+                logger.warning("Failed to delete log journal " + dir);
+            }
+        }
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    private void save() throws IOException {
+        File tmp = new File(dir, STATE_FILE + ".tmp");
+
+        OutputStream os = new FileOutputStream(tmp);
+        try {
+            state.store(os, null);
+        } finally {
+            os.close();
+        }
+
+        // rename does not replace an existing file on Windows
+        if (!tmp.renameTo(stateFile) && !(stateFile.delete() && tmp.renameTo(stateFile))) {
+            throw new IOException("Could not replace log journal checkpoint " + stateFile);
+        }
+    }
+
+    private static String logPrefix(int logId) {
+        return "log." + logId + ".";
+    }
+}
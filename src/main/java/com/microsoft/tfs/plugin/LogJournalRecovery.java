@@ -0,0 +1,156 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import com.microsoft.tfs.plugin.Notifier.TfsBuildNotifier;
+import com.microsoft.tfs.plugin.impl.TfsClientFactoryImpl;
+import com.microsoft.tfs.plugin.impl.TfsLogUploader;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Finishes log uploads that were cut short by a restart of Jenkins.
+ *
+ * A log journal is deleted as soon as all of its lines are on TFS, so any journal found at startup
+ * belongs to a build whose logs never fully made it.  The lines after each checkpoint are uploaded in
+ * the background with the TFS settings of the job's notifier.
+ */
+public final class LogJournalRecovery {
+
+    private static final Logger logger = Logger.getLogger(LogJournalRecovery.class.getName());
+
+    /*
+     * Directory under the Jenkins root dir with the journals of builds whose logs are being uploaded
+     */
+    private static final String JOURNAL_ROOT_DIR = "tfs-log-journals";
+
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long MIN_RETRY_DELAY_MILLIS = 5 * 1000;
+
+    private LogJournalRecovery() {
+    }
+
+    /**
+     * @return the journal directory of the build
+     */
+    public static File getJournalDir(AbstractBuild build) {
+        String name = build.getProject().getFullName().replaceAll("[^A-Za-z0-9._-]", "_") + "-" + build.getNumber();
+        return new File(getJournalRoot(), name);
+    }
+
+    private static File getJournalRoot() {
+        return new File(Jenkins.getInstance().getRootDir(), JOURNAL_ROOT_DIR);
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void resumeUploads() {
+        LogShippingEngine engine = LogShippingEngine.get();
+
+        for (File dir : LogJournal.list(getJournalRoot())) {
+            LogShippingEngine.Lane lane = engine.newLane("TFS log recovery " + dir.getName());
+            lane.execute(new ResumeUpload(dir, lane));
+        }
+    }
+
+    /*
+     * Uploads the rest of one journal, retrying a few times before leaving it to the next restart
+     */
+    private static final class ResumeUpload implements Runnable {
+        private final File dir;
+        private final LogShippingEngine.Lane lane;
+        private int attempt;
+
+        ResumeUpload(File dir, LogShippingEngine.Lane lane) {
+            this.dir = dir;
+            this.lane = lane;
+        }
+
+        public void run() {
+            LogJournal journal;
+            try {
+                journal = LogJournal.open(dir);
+            } catch (IOException e) {
+                logger.warning("Failed to open log journal " + dir + ": " + e.getMessage());
+                return;
+            }
+
+            try {
+                TfsLogUploader uploader = getUploader(journal);
+                if (uploader == null) {
+                    logger.warning(String.format("Job %s is gone or no longer reports to TFS, dropping log journal %s",
+                            journal.getJobFullName(), dir));
+                    journal.delete();
+                    return;
+                }
+
+                upload(journal, uploader);
+
+                logger.info(String.format("Resumed upload of logs of %s #%d completed",
+                        journal.getJobFullName(), journal.getBuildNumber()));
+                journal.delete();
+
+            } catch (Exception e) {
+                journal.close();
+
+                if (++attempt < MAX_ATTEMPTS) {
+                    long delay = MIN_RETRY_DELAY_MILLIS << attempt;
+                    logger.warning(String.format("Failed to resume upload of log journal %s: %s, retrying in %d ms",
+                            dir, e.getMessage(), delay));
+                    lane.schedule(this, delay, TimeUnit.MILLISECONDS);
+                } else {
+                    logger.warning(String.format("Failed to resume upload of log journal %s: %s, trying again after the next restart",
+                            dir, e.getMessage()));
+                    lane.shutdown();
+                }
+            }
+        }
+
+        private TfsLogUploader getUploader(LogJournal journal) throws Exception {
+            String jobName = journal.getJobFullName();
+            AbstractProject project = jobName == null ? null
+                    : Jenkins.getInstance().getItemByFullName(jobName, AbstractProject.class);
+            if (project == null) {
+                return null;
+            }
+
+            TfsBuildNotifier notifier = (TfsBuildNotifier) project.getPublishersList().get(TfsBuildNotifier.class);
+            if (notifier == null) {
+                return null;
+            }
+
+            TfsConfiguration config = notifier.getConfig();
+            return new TfsLogUploader(new TfsClientFactoryImpl().getValidatedClient(config.getServerUrl(),
+                    config.getUsername(), config.getPassword()));
+        }
+
+        private void upload(LogJournal journal, TfsLogUploader uploader) throws IOException {
+            LogBatch batch = new LogBatch();
+
+            for (TfsLogDestination destination : journal.getDestinations()) {
+                long offset = journal.getCheckpoint(destination.getLogId());
+
+                while (true) {
+                    batch.clear();
+                    int read = journal.read(offset, Long.MAX_VALUE, batch,
+                            LogBatchPolicy.DEFAULT_MAX_LINES, LogBatchPolicy.DEFAULT_MAX_BYTES);
+                    if (read == 0) {
+                        break;
+                    }
+
+                    uploader.append(destination, batch);
+                    offset += read;
+                    journal.checkpoint(destination.getLogId(), offset);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free ring of console lines, any number of producers and a single consumer.
+ *
+ * Slots keep their byte arrays from lap to lap, so once the ring has been around once, handing a
+ * line over costs a compare-and-set on the producer cursor and a copy into the slot.  Every slot
+ * carries a sequence number: a producer may fill the slot when it equals the claimed position, the
+ * consumer may read it once it is one past that position, and hands it back for the next lap by
+ * moving it ahead by the capacity.
+ */
+public class LogRingBuffer {
+
+    private static final int INITIAL_SLOT_SIZE = 256;
+
+    /**
+     * Receives the lines the consumer takes from the ring
+     */
+    public interface LineHandler {
+        void onLine(byte[] b, int off, int len) throws IOException;
+    }
+
+    private final int mask;
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final AtomicLongArray sequences;
+
+    /* next position to claim by producers */
+    private final AtomicLong tail = new AtomicLong();
+
+    /* next position to read, only touched by the consumer */
+    private long head;
+
+    /**
+     * @param capacity number of lines, rounded up to a power of two
+     */
+    public LogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+
+        this.mask = size - 1;
+        this.slots = new byte[size][];
+        this.lengths = new int[size];
+        this.sequences = new AtomicLongArray(size);
+
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Copy the line into the ring
+     *
+     * @return false if the ring is full
+     */
+    public boolean offer(byte[] b, int off, int len) {
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) position & mask;
+
+            long available = sequences.get(slot) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (available < 0) {
+                // the consumer has not taken this slot of the previous lap yet
+                return false;
+            }
+            // else another producer claimed the position first, try the next one
+        }
+
+        if (slots[slot] == null || slots[slot].length < len) {
+            slots[slot] = new byte[Math.max(len, INITIAL_SLOT_SIZE)];
+        }
+        System.arraycopy(b, off, slots[slot], 0, len);
+        lengths[slot] = len;
+
+        // publish the line to the consumer, a full volatile write so whatever the producer checks next
+        // (such as whether a drain is already queued) is not read before the line is visible
+        sequences.set(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Hand the lines in the ring to the handler, oldest first.  Only one thread may drain at a time.
+     *
+     * A line whose handler throws is consumed all the same.
+     *
+     * @return number of lines taken
+     */
+    public int drainTo(LineHandler handler, int maxLines) throws IOException {
+        int taken = 0;
+        while (taken < maxLines) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                // empty, or the producer of the next line is still copying it
+                break;
+            }
+
+            try {
+                handler.onLine(slots[slot], 0, lengths[slot]);
+            } finally {
+                sequences.lazySet(slot, head + slots.length);
+                head++;
+                taken++;
+            }
+        }
+
+        return taken;
+    }
+
+    /**
+     * @return true if no line is waiting, lines still being copied in by a producer count as waiting
+     */
+    public boolean isEmpty() {
+        return tail.get() == head;
+    }
+}
@@ -0,0 +1,252 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plugin wide engine that ships console logs of all running builds to TFS.
+ *
+ * A small fixed pool of workers services every build.  Each build gets its own {@link Lane}, tasks on a
+ * lane run one at a time in submission order, so logs of a build keep their order.  A lane runs a single
+ * task per turn and then goes to the back of the worker queue, so a noisy build can not starve the others.
+ * Linger timers of all lanes share one timer thread.
+ */
+public final class LogShippingEngine {
+
+    private static final Logger logger = Logger.getLogger(LogShippingEngine.class.getName());
+
+    public static final String WORKERS_PROPERTY = LogShippingEngine.class.getName() + ".workers";
+
+    private static final int DEFAULT_WORKERS = 4;
+
+    private static final long IDLE_SECONDS = 60;
+
+    private static volatile LogShippingEngine instance;
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+
+    private LogShippingEngine(String name, int workerCount) {
+        // workers and timer only start with the first task, and workers stop again when idle
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(workerCount, workerCount, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedDaemonThreadFactory(name));
+        workers.allowCoreThreadTimeOut(true);
+        this.workers = workers;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory(name + " timer"));
+
+        logger.info(String.format("Started %s engine with %d workers", name, workerCount));
+    }
+
+    /**
+     * @return the engine shared by all builds
+     */
+    public static LogShippingEngine get() {
+        if (instance == null) {
+            synchronized (LogShippingEngine.class) {
+                if (instance == null) {
+                    instance = new LogShippingEngine("TFS log shipper",
+                            Math.max(1, Integer.getInteger(WORKERS_PROPERTY, DEFAULT_WORKERS)));
+                }
+            }
+        }
+
+        return instance;
+    }
+
+    /**
+     * Create an engine of its own, for calls that may block for long and must not hold up the log shipping
+     *
+     * @param name prefix of the worker thread names
+     */
+    public static LogShippingEngine create(String name, int workerCount) {
+        return new LogShippingEngine(name, Math.max(1, workerCount));
+    }
+
+    /**
+     * Stop the workers and the timer once the tasks already submitted have run, lanes take no more tasks
+     *
+     * @return true if the submitted tasks finished before the timeout
+     */
+    public boolean shutdownAndAwait(long timeout, TimeUnit unit) throws InterruptedException {
+        timer.shutdownNow();
+        workers.shutdown();
+        return workers.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Create a serial lane for one build
+     *
+     * @param name used in log messages
+     */
+    public Lane newLane(String name) {
+        return new Lane(name);
+    }
+
+    /**
+     * A serial queue of tasks for one build, executed on the shared workers
+     */
+    public final class Lane implements Runnable, Executor {
+        private final String name;
+
+        /* guarded by this */
+        private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+
+        /* guarded by this, true while the lane sits in the worker queue or runs on a worker */
+        private boolean queued;
+
+        /* guarded by this */
+        private boolean closed;
+
+        private Lane(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Run the task after all tasks submitted before it
+         *
+         * @throws RejectedExecutionException if the lane is closed
+         */
+        public void execute(Runnable task) {
+            synchronized (this) {
+                if (closed) {
+                    throw new RejectedExecutionException("Log shipping lane " + name + " is closed");
+                }
+
+                tasks.add(task);
+                if (queued) {
+                    return;
+                }
+                queued = true;
+            }
+
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                abandon();
+                throw e;
+            }
+        }
+
+        /**
+         * Submit the task to this lane after the delay, dropped if the lane is closed by then
+         */
+        public void schedule(final Runnable task, long delay, TimeUnit unit) {
+            timer.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        execute(task);
+                    } catch (RejectedExecutionException e) {
+                        // lane closed meanwhile, whoever closed it takes care of what is left
+                    }
+                }
+            }, delay, unit);
+        }
+
+        /**
+         * Reject new tasks, the submitted ones still run
+         */
+        public synchronized void shutdown() {
+            closed = true;
+        }
+
+        /**
+         * Reject new tasks and wait for the submitted ones to finish
+         *
+         * @return true if the lane went idle before the timeout
+         */
+        public synchronized boolean shutdownAndAwait(long timeout, TimeUnit unit) throws InterruptedException {
+            closed = true;
+
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (queued) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+
+            return true;
+        }
+
+        public synchronized boolean isShutdown() {
+            return closed;
+        }
+
+        /*
+         * One turn on a worker: run the oldest task, then requeue behind the other lanes if there is more to do
+         */
+        public void run() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+            }
+
+            try {
+                if (task != null) {
+                    task.run();
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Log shipping task failed on lane " + name, e);
+            } finally {
+                boolean more;
+                synchronized (this) {
+                    more = !tasks.isEmpty();
+                    if (!more) {
+                        queued = false;
+                        notifyAll();
+                    }
+                }
+
+                if (more) {
+                    try {
+                        workers.execute(this);
+                    } catch (RejectedExecutionException e) {
+                        abandon();
+                    }
+                }
+            }
+        }
+
+        /*
+         * The engine is shut down and so is every lane on it, drop what is left
+         */
+        private synchronized void abandon() {
+            if (!tasks.isEmpty()) {
+                logger.warning(String.format("Dropped %d tasks of lane %s, the engine is shut down", tasks.size(), name));
+            }
+
+            tasks.clear();
+            queued = false;
+            closed = true;
+            notifyAll();
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final class NamedDaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedDaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + " #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -6,9 +6,13 @@ package com.microsoft.tfs.plugin.Notifier;
 import com.microsoft.teamfoundation.build.webapi.model.BuildDefinitionReference;
 import com.microsoft.teamfoundation.build.webapi.model.DefinitionReference;
 import com.microsoft.teamfoundation.core.webapi.model.TeamProjectReference;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.microsoft.tfs.plugin.AsyncTfsBuildFacade;
 import com.microsoft.tfs.plugin.TfsBuildFacade;
 import com.microsoft.tfs.plugin.TfsBuildFacadeFactory;
+import com.microsoft.tfs.plugin.TfsBuildState;
 import com.microsoft.tfs.plugin.TfsClientFactory;
+import com.microsoft.tfs.plugin.impl.AsyncTfsBuildFacadeImpl;
 import com.microsoft.tfs.plugin.impl.TfsBuildFacadeFactoryImpl;
 import com.microsoft.tfs.plugin.impl.TfsClient;
 import com.microsoft.tfs.plugin.TfsConfiguration;
@@ -34,6 +38,7 @@ import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 /**
@@ -49,16 +54,82 @@ public class TfsBuildNotifier extends Notifier {
     public final String project;
     public final String buildDefinition;
 
+    /*
+     * Log shipping limits, 0 means use the default
+     */
+    private final int logBatchMaxLines;
+    private final int logBatchMaxBytes;
+    private final int logBatchMaxLingerMillis;
+    private final int logBatchTargetLatencyMillis;
+
     private transient TfsClientFactory tfsClientFactory;
     private transient TfsBuildFacadeFactory tfsBuildFacadeFactory;
+    private transient Executor tfsCallExecutor;
 
-    @DataBoundConstructor
     public TfsBuildNotifier(String serverUrl, String username, Secret password, String project, String buildDefinition) {
+        this(serverUrl, username, password, project, buildDefinition, 0, 0, 0, 0);
+    }
+
+    /*
+     * The log shipping limits are free text fields, empty or anything but a positive number means use the default
+     */
+    @DataBoundConstructor
+    public TfsBuildNotifier(String serverUrl, String username, Secret password, String project, String buildDefinition,
+                            String logBatchMaxLines, String logBatchMaxBytes, String logBatchMaxLingerMillis,
+                            String logBatchTargetLatencyMillis) {
+        this(serverUrl, username, password, project, buildDefinition, parseLimit(logBatchMaxLines),
+                parseLimit(logBatchMaxBytes), parseLimit(logBatchMaxLingerMillis), parseLimit(logBatchTargetLatencyMillis));
+    }
+
+    public TfsBuildNotifier(String serverUrl, String username, Secret password, String project, String buildDefinition,
+                            int logBatchMaxLines, int logBatchMaxBytes, int logBatchMaxLingerMillis,
+                            int logBatchTargetLatencyMillis) {
         this.serverUrl = serverUrl;
         this.username = username;
         this.password = password;
         this.project = project;
         this.buildDefinition = buildDefinition;
+        this.logBatchMaxLines = logBatchMaxLines;
+        this.logBatchMaxBytes = logBatchMaxBytes;
+        this.logBatchMaxLingerMillis = logBatchMaxLingerMillis;
+        this.logBatchTargetLatencyMillis = logBatchTargetLatencyMillis;
+    }
+
+    /*
+     * The form shows the log shipping limits as set, an unset limit as an empty field rather than 0
+     */
+    public String getLogBatchMaxLines() {
+        return formatLimit(logBatchMaxLines);
+    }
+
+    public String getLogBatchMaxBytes() {
+        return formatLimit(logBatchMaxBytes);
+    }
+
+    public String getLogBatchMaxLingerMillis() {
+        return formatLimit(logBatchMaxLingerMillis);
+    }
+
+    public String getLogBatchTargetLatencyMillis() {
+        return formatLimit(logBatchTargetLatencyMillis);
+    }
+
+    private static String formatLimit(int value) {
+        return value > 0 ? String.valueOf(value) : "";
+    }
+
+    private static int parseLimit(String value) {
+        String trimmed = Util.fixEmptyAndTrim(value);
+        if (trimmed == null) {
+            return 0;
+        }
+
+        try {
+            return Math.max(0, Integer.parseInt(trimmed));
+        } catch (NumberFormatException e) {
+            logger.warning("Ignoring log shipping limit " + trimmed + ", using the default");
+            return 0;
+        }
     }
 
     public BuildStepMonitor getRequiredMonitorService() {
@@ -76,22 +147,32 @@ public class TfsBuildNotifier extends Notifier {
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
 
-        // Get VSO build environments
-        Map<String, String> env = build.getBuildVariables();
-        String tfsBuildIdStr = env.get("TfsBuildId" + build.getId());
+        // Ids the wrapper saved with the build, or on older builds the TFS build id in the build variables
+        TfsBuildState state = build.getAction(TfsBuildState.class);
+        String tfsBuildIdStr = null;
+        if (state == null) {
+            Map<String, String> env = build.getBuildVariables();
+            tfsBuildIdStr = env.get("TfsBuildId" + build.getId());
 
-        // No build was queued on tfs, return
-        if (tfsBuildIdStr == null) {
-            return false;
+            // No build was queued on tfs, return
+            if (tfsBuildIdStr == null) {
+                return false;
+            }
         }
 
-        int tfsBuildId = Integer.parseInt(tfsBuildIdStr);
         try {
             TfsClient client = getTfsClientFactory().getValidatedClient(this.serverUrl, this.username, this.password);
-            TfsBuildFacade tfsBuildFacade = getTfsBuildFacadeFactory().getBuildOnTfs(tfsBuildId, build, client);
-
-            tfsBuildFacade.finishAllTaskRecords();
-            tfsBuildFacade.finishBuild();
+            TfsBuildFacade tfsBuildFacade = state != null
+                    ? getTfsBuildFacadeFactory().getBuildOnTfs(state, build, client)
+                    : getTfsBuildFacadeFactory().getBuildOnTfs(Integer.parseInt(tfsBuildIdStr), build, client);
+
+            // after the start calls of the wrapper, on the build's lane; waited for, since nothing would
+            // finish the TFS build if Jenkins went down with the calls still queued
+            AsyncTfsBuildFacade asyncFacade = getAsyncFacade(tfsBuildFacade, this.serverUrl);
+            ListenableFuture<Void> recordsFinished = asyncFacade.finishAllTaskRecords();
+            ListenableFuture<Void> buildFinished = asyncFacade.finishBuild();
+            recordsFinished.get();
+            buildFinished.get();
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -104,7 +185,8 @@ public class TfsBuildNotifier extends Notifier {
     }
 
     public TfsConfiguration getConfig() {
-        return new TfsConfiguration(serverUrl, username, password, project, buildDefinition);
+        return new TfsConfiguration(serverUrl, username, password, project, buildDefinition,
+                logBatchMaxLines, logBatchMaxBytes, logBatchMaxLingerMillis, logBatchTargetLatencyMillis);
     }
 
     public void setTfsBuildFacadeFactory(TfsBuildFacadeFactory facadeFactory) {
@@ -119,6 +201,21 @@ public class TfsBuildNotifier extends Notifier {
         return this.tfsBuildFacadeFactory;
     }
 
+    /**
+     * Run the TFS state calls on this executor, instead of the shared lane of the TFS build
+     */
+    public void setTfsCallExecutor(Executor executor) {
+        this.tfsCallExecutor = executor;
+    }
+
+    private AsyncTfsBuildFacade getAsyncFacade(TfsBuildFacade facade, String serverUrl) {
+        if (this.tfsCallExecutor == null) {
+            return AsyncTfsBuildFacadeImpl.forBuild(facade, serverUrl);
+        }
+
+        return new AsyncTfsBuildFacadeImpl(facade, tfsCallExecutor);
+    }
+
     public void setTfsClientFactory(TfsClientFactory clientFactory) {
         this.tfsClientFactory = clientFactory;
     }
@@ -167,6 +264,22 @@ public class TfsBuildNotifier extends Notifier {
             return FormValidation.validateRequired(password);
         }
 
+        public FormValidation doCheckLogBatchMaxLines(@QueryParameter String logBatchMaxLines) {
+            return validateOptionalNonNegativeInt(logBatchMaxLines);
+        }
+
+        public FormValidation doCheckLogBatchMaxBytes(@QueryParameter String logBatchMaxBytes) {
+            return validateOptionalNonNegativeInt(logBatchMaxBytes);
+        }
+
+        public FormValidation doCheckLogBatchMaxLingerMillis(@QueryParameter String logBatchMaxLingerMillis) {
+            return validateOptionalNonNegativeInt(logBatchMaxLingerMillis);
+        }
+
+        public FormValidation doCheckLogBatchTargetLatencyMillis(@QueryParameter String logBatchTargetLatencyMillis) {
+            return validateOptionalNonNegativeInt(logBatchTargetLatencyMillis);
+        }
+
         public FormValidation doTestConnection(@QueryParameter String serverUrl, @QueryParameter String username,
                                                @QueryParameter Secret password) {
             try {
@@ -226,6 +339,17 @@ public class TfsBuildNotifier extends Notifier {
             return items;
         }
 
+        /*
+         * Empty or 0 means use the default
+         */
+        private FormValidation validateOptionalNonNegativeInt(String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
         private boolean validInputs(Object... inputs) {
             for (Object input : inputs) {
                 if (input == null) {
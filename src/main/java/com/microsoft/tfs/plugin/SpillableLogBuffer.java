@@ -0,0 +1,278 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+
+/**
+ * A FIFO buffer of encoded console lines with a bounded heap footprint.
+ *
+ * Lines are copied into pooled heap chunks until the byte cap is reached, after that they are appended to
+ * memory-mapped segment files in the spill directory.  A segment file starts small and its mapping grows with
+ * the lines written to it, up to the segment size.  Chunks and segments form a single queue, once spilling
+ * has started every new line goes to disk until the segments are drained again, so lines always come out in the
+ * order they went in.
+ *
+ * All methods are synchronized, the build thread adds lines while the shipper drains them.
+ */
+public class SpillableLogBuffer {
+
+    private static final Logger logger = Logger.getLogger(SpillableLogBuffer.class.getName());
+
+    /*
+     * Every record is prefixed with its length
+     */
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    /*
+     * Size a segment file is first mapped with, doubled as lines are written up to the segment size
+     */
+    private static final int INITIAL_SEGMENT_MAPPING = 64 * 1024;
+
+    private final File spillDir;
+    private final long maxMemoryBytes;
+    private final int segmentSize;
+    private final ByteChunkPool chunkPool;
+
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+    private long memoryBytes;
+    private int spilledSegments;
+    private long pendingBytes;
+    private int pendingLines;
+    private int segmentSequence;
+
+    public SpillableLogBuffer(File spillDir, long maxMemoryBytes, int segmentSize) {
+        this(spillDir, maxMemoryBytes, segmentSize, ByteChunkPool.get());
+    }
+
+    public SpillableLogBuffer(File spillDir, long maxMemoryBytes, int segmentSize, ByteChunkPool chunkPool) {
+        this.spillDir = spillDir;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.segmentSize = segmentSize;
+        this.chunkPool = chunkPool;
+    }
+
+    /**
+     * Copy an encoded line to the end of the buffer
+     *
+     * @throws IOException if the line had to be spilled and the segment file could not be written
+     */
+    public synchronized void add(byte[] b, int off, int len) throws IOException {
+        Segment tail = segments.peekLast();
+        if (tail == null || !tail.hasRoomFor(len) && !tail.growFor(len, segmentSize)) {
+            tail = newSegment(len);
+            segments.addLast(tail);
+        }
+
+        tail.write(b, off, len);
+
+        pendingLines++;
+        pendingBytes += len;
+    }
+
+    public void add(byte[] line) throws IOException {
+        add(line, 0, line.length);
+    }
+
+    /**
+     * Move the oldest lines into the batch
+     *
+     * @param batch receives the lines
+     * @param maxLines stop after this many lines
+     * @param maxBytes stop once the batch holds at least this many bytes
+     * @return number of lines moved
+     */
+    public synchronized int drainTo(LogBatch batch, int maxLines, int maxBytes) {
+        int count = 0;
+
+        while (count < maxLines && batch.byteSize() < maxBytes && !segments.isEmpty()) {
+            Segment head = segments.getFirst();
+            int len = head.readInto(batch);
+
+            if (len < 0) {
+                if (segments.size() == 1 && head.chunk != null) {
+                    // keep the last chunk for the next lines instead of cycling it through the pool
+                    head.reset();
+                    break;
+                }
+
+                // the head is drained, it is only still written to when it is also the tail
+                segments.removeFirst();
+                release(head);
+                continue;
+            }
+
+            count++;
+            pendingLines--;
+            pendingBytes -= len;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return number of lines waiting in the buffer, in memory and on disk
+     */
+    public synchronized int size() {
+        return pendingLines;
+    }
+
+    /**
+     * @return number of payload bytes waiting in the buffer, in memory and on disk
+     */
+    public synchronized long byteSize() {
+        return pendingBytes;
+    }
+
+    public synchronized boolean isEmpty() {
+        return pendingLines == 0;
+    }
+
+    /**
+     * Drop whatever is left, return the chunks and delete the segment files
+     */
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            release(segment);
+        }
+        segments.clear();
+
+        pendingLines = 0;
+        pendingBytes = 0;
+    }
+
+    private Segment newSegment(int lineLength) throws IOException {
+        int recordSize = lineLength + RECORD_HEADER_SIZE;
+
+        // a line bigger than a chunk gets a chunk of its own, which is not pooled
+        boolean pooled = recordSize <= chunkPool.getChunkSize();
+        int chunkSize = pooled ? chunkPool.getChunkSize() : recordSize;
+
+        if (spilledSegments == 0 && memoryBytes + chunkSize <= maxMemoryBytes) {
+            byte[] chunk = pooled ? chunkPool.acquire() : new byte[recordSize];
+            memoryBytes += chunk.length;
+
+            return new Segment(ByteBuffer.wrap(chunk), chunk, null, null);
+        }
+
+        if (!spillDir.isDirectory() && !spillDir.mkdirs()) {
+            throw new IOException("Could not create log spill directory " + spillDir);
+        }
+
+        File file = new File(spillDir, String.format("segment-%05d.log", segmentSequence++));
+        logger.fine(String.format("Log buffer exceeded %d bytes in memory, spilling to %s", maxMemoryBytes, file));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        ByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(recordSize, Math.min(segmentSize, INITIAL_SEGMENT_MAPPING)));
+        spilledSegments++;
+
+        return new Segment(mapped, null, file, raf);
+    }
+
+    private void release(Segment segment) {
+        if (segment.chunk != null) {
+            memoryBytes -= segment.chunk.length;
+            chunkPool.release(segment.chunk);
+        } else {
+            spilledSegments--;
+            segment.deleteFile();
+        }
+    }
+
+    /*
+     * An append-only region of length-prefixed records, backed by either a heap chunk or a mapped file
+     */
+    private static final class Segment {
+        private final byte[] chunk;
+        private final File file;
+        private final RandomAccessFile raf;
+        private ByteBuffer writeView;
+        private ByteBuffer readView;
+
+        Segment(ByteBuffer buffer, byte[] chunk, File file, RandomAccessFile raf) {
+            this.chunk = chunk;
+            this.file = file;
+            this.raf = raf;
+            this.writeView = buffer.duplicate();
+            this.readView = buffer.duplicate();
+        }
+
+        boolean hasRoomFor(int lineLength) {
+            return writeView.remaining() >= lineLength + RECORD_HEADER_SIZE;
+        }
+
+        /*
+         * Map more of the segment file for the line, doubling the mapping up to the max size
+         *
+         * @return false if the segment is on the heap, or the line would take it past the max size
+         */
+        boolean growFor(int lineLength, int maxSize) throws IOException {
+            int needed = writeView.position() + lineLength + RECORD_HEADER_SIZE;
+            if (raf == null || needed > maxSize) {
+                return false;
+            }
+
+            int size = writeView.capacity();
+            while (size < needed) {
+                size = (int) Math.min((long) size * 2, maxSize);
+            }
+
+            ByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int written = writeView.position();
+            int read = readView.position();
+
+            writeView = mapped.duplicate();
+            writeView.position(written);
+            readView = mapped.duplicate();
+            readView.position(read);
+
+            return true;
+        }
+
+        void write(byte[] b, int off, int len) {
+            writeView.putInt(len);
+            writeView.put(b, off, len);
+        }
+
+        /*
+         * Returns the length of the line moved into the batch, or -1 if there is nothing left to read
+         */
+        int readInto(LogBatch batch) {
+            if (readView.position() >= writeView.position()) {
+                return -1;
+            }
+
+            int len = readView.getInt();
+            batch.append(readView, len);
+
+            return len;
+        }
+
+        void reset() {
+            writeView.clear();
+            readView.clear();
+        }
+
+        void deleteFile() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.warning("Failed to close log spill segment " + file + ": " + e.getMessage());
+            }
+
+            // a mapped file can not be deleted on Windows until the mapping is collected
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
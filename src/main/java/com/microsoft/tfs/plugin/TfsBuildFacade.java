@@ -3,8 +3,6 @@
 
 package com.microsoft.tfs.plugin;
 
-import java.util.List;
-
 /**
  * This class is a facade to update TFS build from Jenkins.
  */
@@ -18,7 +16,40 @@ public interface TfsBuildFacade {
 
     void finishAllTaskRecords();
 
-    void appendJobLog(List<String> logLines);
+    /**
+     * Send the lines to the console feed and append them to both logs, one after the other
+     */
+    void appendJobLog(LogBatch logLines);
+
+    /**
+     * Post the lines to the live console feed of the build
+     */
+    void postConsoleFeed(LogBatch logLines);
+
+    /**
+     * Append the lines to the log of the Jenkins task record
+     */
+    void appendTaskLog(LogBatch logLines);
+
+    /**
+     * Append the lines to the log of the job record
+     */
+    void appendJobRecordLog(LogBatch logLines);
+
+    /**
+     * Where the lines of the Jenkins task log go, for uploads that outlive this facade
+     */
+    TfsLogDestination getTaskLogDestination();
+
+    /**
+     * Where the lines of the job log go, for uploads that outlive this facade
+     */
+    TfsLogDestination getJobLogDestination();
 
     int getTfsBuildId();
+
+    /**
+     * The ids of the TFS build, to rebuild this facade from later in the build
+     */
+    TfsBuildState getState();
 }
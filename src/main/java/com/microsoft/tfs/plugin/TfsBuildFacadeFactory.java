@@ -30,4 +30,13 @@ public interface TfsBuildFacadeFactory {
      * @param tfsClient
      */
     TfsBuildFacade getBuildOnTfs(final int tfsBuildId, final AbstractBuild jenkinsBuild, final TfsClient tfsClient);
+
+    /**
+     * Get a TfsBuildFacade for a build set up earlier, without any calls to TFS
+     *
+     * @param state
+     * @param jenkinsBuild
+     * @param tfsClient
+     */
+    TfsBuildFacade getBuildOnTfs(final TfsBuildState state, final AbstractBuild jenkinsBuild, final TfsClient tfsClient);
 }
@@ -0,0 +1,83 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import hudson.model.InvisibleAction;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * The ids of the TFS build behind a Jenkins build, saved with the Jenkins build.
+ *
+ * The build wrapper attaches it once the TFS build is set up, and the notifier rebuilds the facade
+ * from it without asking the server for any of them again.
+ */
+public final class TfsBuildState extends InvisibleAction implements Serializable {
+
+    private static final long serialVersionUID = 6139420466315081842L;
+
+    private final int tfsBuildId;
+    private final UUID projectId;
+    private final UUID planId;
+    private final UUID timelineId;
+    private final UUID jobRecordId;
+    private final UUID jenkinsRecordId;
+    private final int jobLogId;
+    private final int jenkinsLogId;
+    private final String jenkinsTaskName;
+
+    public TfsBuildState(int tfsBuildId, UUID projectId, UUID planId, UUID timelineId, UUID jobRecordId,
+                         UUID jenkinsRecordId, int jobLogId, int jenkinsLogId, String jenkinsTaskName) {
+        this.tfsBuildId = tfsBuildId;
+        this.projectId = projectId;
+        this.planId = planId;
+        this.timelineId = timelineId;
+        this.jobRecordId = jobRecordId;
+        this.jenkinsRecordId = jenkinsRecordId;
+        this.jobLogId = jobLogId;
+        this.jenkinsLogId = jenkinsLogId;
+        this.jenkinsTaskName = jenkinsTaskName;
+    }
+
+    public int getTfsBuildId() {
+        return tfsBuildId;
+    }
+
+    public UUID getProjectId() {
+        return projectId;
+    }
+
+    public UUID getPlanId() {
+        return planId;
+    }
+
+    public UUID getTimelineId() {
+        return timelineId;
+    }
+
+    public UUID getJobRecordId() {
+        return jobRecordId;
+    }
+
+    public UUID getJenkinsRecordId() {
+        return jenkinsRecordId;
+    }
+
+    public int getJobLogId() {
+        return jobLogId;
+    }
+
+    public int getJenkinsLogId() {
+        return jenkinsLogId;
+    }
+
+    public String getJenkinsTaskName() {
+        return jenkinsTaskName;
+    }
+
+    public String toString() {
+        return String.format("TFS build %d, plan %s", tfsBuildId, planId);
+    }
+}
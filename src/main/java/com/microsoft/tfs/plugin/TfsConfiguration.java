@@ -16,13 +16,27 @@ public class TfsConfiguration implements Serializable {
     private final Secret password;
     private final String project;
     private final String buildDefinition;
+    private final int logBatchMaxLines;
+    private final int logBatchMaxBytes;
+    private final int logBatchMaxLingerMillis;
+    private final int logBatchTargetLatencyMillis;
 
     public TfsConfiguration(String serverUrl, String username, Secret password, String project, String buildDefinition) {
+        this(serverUrl, username, password, project, buildDefinition, 0, 0, 0, 0);
+    }
+
+    public TfsConfiguration(String serverUrl, String username, Secret password, String project, String buildDefinition,
+                            int logBatchMaxLines, int logBatchMaxBytes, int logBatchMaxLingerMillis,
+                            int logBatchTargetLatencyMillis) {
         this.serverUrl = serverUrl;
         this.username = username;
         this.password = password;
         this.project = project;
         this.buildDefinition = buildDefinition;
+        this.logBatchMaxLines = logBatchMaxLines;
+        this.logBatchMaxBytes = logBatchMaxBytes;
+        this.logBatchMaxLingerMillis = logBatchMaxLingerMillis;
+        this.logBatchTargetLatencyMillis = logBatchTargetLatencyMillis;
     }
 
     public String getBuildDefinition() {
@@ -45,6 +59,22 @@ public class TfsConfiguration implements Serializable {
         return project;
     }
 
+    public int getLogBatchMaxLines() {
+        return logBatchMaxLines;
+    }
+
+    public int getLogBatchMaxBytes() {
+        return logBatchMaxBytes;
+    }
+
+    public int getLogBatchMaxLingerMillis() {
+        return logBatchMaxLingerMillis;
+    }
+
+    public int getLogBatchTargetLatencyMillis() {
+        return logBatchTargetLatencyMillis;
+    }
+
     public String toString() {
         return String.format("server: %s, user: %s, project: %s, build definition: %s",
                 serverUrl, username, project, buildDefinition);
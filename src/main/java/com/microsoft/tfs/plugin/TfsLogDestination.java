@@ -0,0 +1,51 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * Everything needed to append to one TFS log of a build, without a facade.
+ */
+public final class TfsLogDestination implements Serializable {
+
+    private static final long serialVersionUID = -2375526402870542190L;
+
+    private final UUID projectId;
+    private final UUID planId;
+    private final int logId;
+
+    /*
+     * Lines of this log are prefixed with the task name, null for no prefix
+     */
+    private final String prefixTaskName;
+
+    public TfsLogDestination(UUID projectId, UUID planId, int logId, String prefixTaskName) {
+        this.projectId = projectId;
+        this.planId = planId;
+        this.logId = logId;
+        this.prefixTaskName = prefixTaskName;
+    }
+
+    public UUID getProjectId() {
+        return projectId;
+    }
+
+    public UUID getPlanId() {
+        return planId;
+    }
+
+    public int getLogId() {
+        return logId;
+    }
+
+    public String getPrefixTaskName() {
+        return prefixTaskName;
+    }
+
+    public String toString() {
+        return String.format("log %d of plan %s", logId, planId);
+    }
+}
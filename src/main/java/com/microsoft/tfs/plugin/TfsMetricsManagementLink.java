@@ -0,0 +1,59 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import com.microsoft.tfs.plugin.impl.TfsConnectionPools;
+import com.microsoft.tfs.plugin.impl.TfsEndpointMetrics;
+import com.microsoft.tfs.plugin.impl.TfsRequestMetrics;
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+import org.apache.http.pool.PoolStats;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Manage Jenkins page with the TFS request metrics and connection pools, to tell which server
+ * calls make builds slow
+ */
+@Extension
+public class TfsMetricsManagementLink extends ManagementLink {
+
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    public String getUrlName() {
+        return "tfs-metrics";
+    }
+
+    public String getDisplayName() {
+        return "TFS Request Metrics";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Latency, sizes, status codes and retries of the calls to Microsoft TFS, by endpoint";
+    }
+
+    public List<TfsEndpointMetrics> getEndpoints() {
+        return TfsRequestMetrics.get().getEndpoints();
+    }
+
+    public Map<String, PoolStats> getPools() {
+        return TfsConnectionPools.getStats();
+    }
+
+    @RequirePOST
+    public HttpResponse doReset() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        TfsRequestMetrics.get().reset();
+
+        return HttpResponses.redirectToDot();
+    }
+}
@@ -6,12 +6,19 @@ package com.microsoft.tfs.plugin;
 import hudson.console.ConsoleNote;
 import hudson.console.LineTransformationOutputStream;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.*;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 
 /**
@@ -21,31 +28,424 @@ public class TfsRemoteConsoleLogAppender extends LineTransformationOutputStream
 
     private static final Logger logger = Logger.getLogger(TfsRemoteConsoleLogAppender.class.getName());
 
+    public static final String MAX_MEMORY_BYTES_PROPERTY = TfsRemoteConsoleLogAppender.class.getName() + ".maxMemoryBytes";
+    public static final String SPILL_SEGMENT_SIZE_PROPERTY = TfsRemoteConsoleLogAppender.class.getName() + ".spillSegmentSize";
+    public static final String MAX_IN_FLIGHT_BATCHES_PROPERTY = TfsRemoteConsoleLogAppender.class.getName() + ".maxInFlightBatches";
+    public static final String FEED_INTERVAL_MILLIS_PROPERTY = TfsRemoteConsoleLogAppender.class.getName() + ".feedIntervalMillis";
+    public static final String FEED_TAIL_LINES_PROPERTY = TfsRemoteConsoleLogAppender.class.getName() + ".feedTailLines";
+    public static final String RING_CAPACITY_PROPERTY = TfsRemoteConsoleLogAppender.class.getName() + ".ringCapacity";
+    public static final String RING_FULL_POLICY_PROPERTY = TfsRemoteConsoleLogAppender.class.getName() + ".ringFullPolicy";
+
+    private static final long DEFAULT_MAX_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final int DEFAULT_SPILL_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_MAX_IN_FLIGHT_BATCHES = 4;
+    private static final long DEFAULT_FEED_INTERVAL_MILLIS = 1000;
+    private static final int DEFAULT_FEED_TAIL_LINES = 100;
+    private static final int DEFAULT_RING_CAPACITY = 4096;
+
+    private static final int PUMP_LINES_PER_TURN = 4096;
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+    /* a sink that can not upload keeps trying at this pace for as long as the journal is there */
+    private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000;
+
+    /**
+     * What the build thread does with a line when the ring to the shipper is full
+     */
+    public enum RingFullPolicy {
+        /** wait for the shipper, which slows down the build's console */
+        BLOCK,
+        /** park the line in an overflow buffer that spills to disk */
+        SPILL,
+        /** drop the line from the TFS logs and count it */
+        DROP
+    }
+
     private final OutputStream delegate;
 
+    /*
+     * Re-encodes lines of the console, lines go to TFS as UTF-8.  Null if the console is UTF-8 already and
+     * its bytes can go as they are.
+     */
+    private final ConsoleLineTranscoder transcoder;
+
     private final TfsBuildFacade tfsBuildFacade;
-    private final ScheduledExecutorService executorService;
-    private final BlockingQueue<String> logs;
+    private final LogShippingEngine.Lane lane;
+    private final SpillableLogBuffer logs;
+    /* null if the journal could not be opened, lines are then uploaded without a second chance */
+    private final LogJournal journal;
+    private final LogBatchPolicy batchPolicy;
 
-    public TfsRemoteConsoleLogAppender(OutputStream delegate, TfsBuildFacade tfsBuildFacade) {
-        this.delegate = delegate;
-        this.logs = new LinkedBlockingQueue<String>();
+    /*
+     * Hands lines from the build thread to the shipper lane, which journals and buffers them
+     */
+    private final LogRingBuffer ring;
+    private final RingFullPolicy ringFullPolicy;
+    private final AtomicBoolean pumpQueued = new AtomicBoolean();
+    private final AtomicLong droppedLines = new AtomicLong();
+
+    /*
+     * Lines that did not fit into the ring, with the spill policy.  While it is not empty new lines
+     * go there as well, so they stay behind the ones in the ring.
+     */
+    private final SpillableLogBuffer overflow;
+    private final LogBatch overflowBatch = new LogBatch();
+
+    /* written while holding overflow */
+    private volatile boolean overflowing;
+
+    private final LogRingBuffer.LineHandler pumpHandler = new LogRingBuffer.LineHandler() {
+        public void onLine(byte[] b, int off, int len) {
+            acceptLine(b, off, len);
+        }
+    };
+
+    /*
+     * The two archived logs are independent, every batch goes to both of them in parallel and each
+     * sink keeps its own order
+     */
+    private final LogSink[] sinks;
+
+    /*
+     * The live console feed only shows the recent tail of the console, posted at most once per
+     * interval on its own lane, and never holds up the archived logs
+     */
+    private final ConsoleFeedTail feedTail;
+    private final LogShippingEngine.Lane feedLane;
+    private final LogBatch feedBatch = new LogBatch();
+    private final long feedIntervalMillis;
+    private final AtomicBoolean feedArmed = new AtomicBoolean();
+
+    /*
+     * Batches not in flight, bounds how many batches the sinks may lag behind the shipper
+     */
+    private final BlockingQueue<InFlightBatch> freeBatches;
+    private final int maxInFlight;
+
+    /*
+     * Journal offset of the end of the last dispatched batch, only written on the shipper lane
+     */
+    private volatile long dispatchedEnd;
+
+    /*
+     * Set when a line made it to the journal but not to the buffer, from then on the logs are
+     * uploaded from the journal alone because batch offsets no longer match the journal
+     */
+    private volatile boolean journalOnly;
+
+    /*
+     * Set while a flush is queued on the lane, so a burst of lines does not queue a flush per line
+     */
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+    /*
+     * Set while the linger timer for the oldest pending line is armed
+     */
+    private final AtomicBoolean lingerArmed = new AtomicBoolean();
+
+    /*
+     * Set once the console is closed
+     */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /*
+     * Set once every line of the closed console has been taken from the ring, remaining lines are
+     * flushed without lingering
+     */
+    private volatile boolean consoleDrained;
+
+    /*
+     * Set once every line is uploaded and the journal is gone
+     */
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    /*
+     * Ships one full batch per turn on the lane and requeues itself while full batches are pending,
+     * so other builds get their turn in between
+     */
+    private final Runnable flushFullBatch = new Runnable() {
+        public void run() {
+            boolean shipped = shipBatch() > 0;
+
+            if (shipped && isFlushDue() && !lane.isShutdown()) {
+                lane.execute(this);
+            } else {
+                flushQueued.set(false);
+                scheduleFlush();
+            }
+        }
+    };
+
+    private final Runnable flushAfterLinger = new Runnable() {
+        public void run() {
+            lingerArmed.set(false);
+            shipBatch();
+            scheduleFlush();
+        }
+    };
 
-        // single thread for posting log to guarantee order
-        this.executorService = Executors.newScheduledThreadPool(1);
+    private final Runnable pump = new Runnable() {
+        public void run() {
+            pumpQueued.set(false);
+            if (pumpLines()) {
+                schedulePump();
+            }
+            scheduleFlush();
+        }
+    };
+
+    private final Runnable finishConsole = new Runnable() {
+        public void run() {
+            while (pumpLines()) {
+                // no more lines come in once the console is closed
+            }
+
+            flushJournal();
+
+            if (!logs.isEmpty()) {
+                logger.info(String.format("Append %d remaining logs in the background.", logs.size()));
+            }
+
+            // last look at the console for the live feed
+            feedLane.execute(postFeed);
 
+            consoleDrained = true;
+            scheduleFlush();
+            checkComplete();
+        }
+    };
+
+    private final Runnable postFeed = new Runnable() {
+        public void run() {
+            feedArmed.set(false);
+            postConsoleFeed();
+        }
+    };
+
+    public TfsRemoteConsoleLogAppender(OutputStream delegate, TfsBuildFacade tfsBuildFacade, File spillDir,
+                                       LogJournal journal, LogBatchPolicy batchPolicy) {
+        this(delegate, LogBatch.UTF8, tfsBuildFacade, spillDir, journal, batchPolicy);
+    }
+
+    /**
+     * @param charset charset the build writes its console in, usually that of the build
+     * @param journal journal of the build's lines, or null to upload them without one
+     */
+    public TfsRemoteConsoleLogAppender(OutputStream delegate, Charset charset, TfsBuildFacade tfsBuildFacade,
+                                       File spillDir, LogJournal journal, LogBatchPolicy batchPolicy) {
+        this.delegate = delegate;
+        this.transcoder = LogBatch.UTF8.equals(charset) ? null : new ConsoleLineTranscoder(charset);
+        this.logs = new SpillableLogBuffer(spillDir,
+                Long.getLong(MAX_MEMORY_BYTES_PROPERTY, DEFAULT_MAX_MEMORY_BYTES),
+                Integer.getInteger(SPILL_SEGMENT_SIZE_PROPERTY, DEFAULT_SPILL_SEGMENT_SIZE));
+        this.overflow = new SpillableLogBuffer(new File(spillDir, "overflow"),
+                Long.getLong(MAX_MEMORY_BYTES_PROPERTY, DEFAULT_MAX_MEMORY_BYTES),
+                Integer.getInteger(SPILL_SEGMENT_SIZE_PROPERTY, DEFAULT_SPILL_SEGMENT_SIZE));
+        this.ring = new LogRingBuffer(Integer.getInteger(RING_CAPACITY_PROPERTY, DEFAULT_RING_CAPACITY));
+        this.ringFullPolicy = parseRingFullPolicy(System.getProperty(RING_FULL_POLICY_PROPERTY));
+        this.journal = journal;
+        this.dispatchedEnd = journal == null ? 0 : journal.length();
+        this.batchPolicy = batchPolicy;
         this.tfsBuildFacade = tfsBuildFacade;
 
+        // posting logs of this build is serialized on its own lanes of the shared engine to guarantee order
+        LogShippingEngine engine = LogShippingEngine.get();
+        String name = "TFS build " + tfsBuildFacade.getTfsBuildId();
+        this.lane = engine.newLane(name);
+
+        this.feedLane = engine.newLane(name + " console feed");
+        this.feedTail = new ConsoleFeedTail(Integer.getInteger(FEED_TAIL_LINES_PROPERTY, DEFAULT_FEED_TAIL_LINES));
+        this.feedIntervalMillis = Long.getLong(FEED_INTERVAL_MILLIS_PROPERTY, DEFAULT_FEED_INTERVAL_MILLIS);
+
+        this.sinks = new LogSink[] {
+                new LogSink(engine.newLane(name + " task log"), tfsBuildFacade.getTaskLogDestination()) {
+                    void send(LogBatch batch) {
+                        tfsBuildFacade.appendTaskLog(batch);
+                    }
+                },
+                new LogSink(engine.newLane(name + " job log"), tfsBuildFacade.getJobLogDestination()) {
+                    void send(LogBatch batch) {
+                        tfsBuildFacade.appendJobRecordLog(batch);
+                    }
+                }
+        };
+
+        this.maxInFlight = Math.max(1, Integer.getInteger(MAX_IN_FLIGHT_BATCHES_PROPERTY, DEFAULT_MAX_IN_FLIGHT_BATCHES));
+        this.freeBatches = new ArrayBlockingQueue<InFlightBatch>(maxInFlight);
+        for (int i = 0; i < maxInFlight; i++) {
+            freeBatches.add(new InFlightBatch());
+        }
+
         logger.info("Initialized Tfs Remote Console log appender");
     }
 
+    private static RingFullPolicy parseRingFullPolicy(String value) {
+        if (value == null) {
+            return RingFullPolicy.SPILL;
+        }
+
+        try {
+            return RingFullPolicy.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            logger.warning("Ignoring ring full policy " + value + ", using " + RingFullPolicy.SPILL);
+            return RingFullPolicy.SPILL;
+        }
+    }
+
     @Override
     protected void eol(byte[] b, int len) throws IOException {
         delegate.write(b, 0, len);
 
-        String line = ConsoleNote.removeNotes(new String(b, 0, len, Charset.defaultCharset())).trim();
-        if (!logs.offer(line)) {
-            logger.warning(String.format("Failed to add log line: %s to queue, is the logger rolling too fast?", line));
+        if (transcoder != null) {
+            // the only copy on this path, into the transcoder's buffer and only for consoles that are not UTF-8
+            len = transcoder.transcode(b, len);
+            b = transcoder.array();
+        }
+
+        // the line has been written to the console, so it is fine to strip it in place
+        int stripped = removeNotesAndTrim(b, len);
+        if (overflowing || !ring.offer(b, 0, stripped)) {
+            ringFull(b, stripped);
+        }
+
+        schedulePump();
+    }
+
+    /*
+     * The shipper lane is behind, deal with the line as the policy says
+     */
+    private void ringFull(byte[] b, int len) {
+        switch (ringFullPolicy) {
+            case BLOCK:
+                while (!ring.offer(b, 0, len)) {
+                    schedulePump();
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                }
+                break;
+
+            case DROP:
+                dropLine();
+                break;
+
+            default:
+                synchronized (overflow) {
+                    if (!overflowing && ring.offer(b, 0, len)) {
+                        // the lane caught up meanwhile
+                        return;
+                    }
+
+                    try {
+                        overflow.add(b, 0, len);
+                        overflowing = true;
+                    } catch (IOException e) {
+                        logger.warning("Failed to add log line to overflow buffer: " + e.getMessage());
+                        dropLine();
+                    }
+                }
+        }
+    }
+
+    private void dropLine() {
+        if (droppedLines.incrementAndGet() == 1) {
+            logger.warning(String.format("TFS log shipping of build %d can not keep up, dropping log lines",
+                    tfsBuildFacade.getTfsBuildId()));
+        }
+    }
+
+    private void schedulePump() {
+        if (!pumpQueued.get() && pumpQueued.compareAndSet(false, true)) {
+            try {
+                lane.execute(pump);
+            } catch (RejectedExecutionException e) {
+                // every line has been uploaded and the lanes are closed
+            }
+        }
+    }
+
+    /*
+     * Take a round of lines from the ring, or from the overflow once the ring is empty
+     *
+     * @return true if there may be more lines to take
+     */
+    private boolean pumpLines() {
+        try {
+            ring.drainTo(pumpHandler, PUMP_LINES_PER_TURN);
+        } catch (IOException e) {
+            // acceptLine deals with its own failures
+        }
+
+        if (!ring.isEmpty()) {
+            return true;
+        }
+
+        if (!overflowing) {
+            return false;
+        }
+
+        overflowBatch.clear();
+        synchronized (overflow) {
+            if (overflow.isEmpty()) {
+                overflowing = false;
+                return !ring.isEmpty();
+            }
+
+            overflow.drainTo(overflowBatch, PUMP_LINES_PER_TURN, Integer.MAX_VALUE);
+        }
+
+        for (int i = 0; i < overflowBatch.size(); i++) {
+            int start = overflowBatch.lineStart(i);
+            acceptLine(overflowBatch.array(), start, overflowBatch.lineEnd(i) - start);
+        }
+
+        return true;
+    }
+
+    /*
+     * Journal a line, show it in the live feed and buffer it for the archived logs, on the shipper lane
+     */
+    private void acceptLine(byte[] b, int off, int len) {
+        if (journal != null) {
+            try {
+                journal.append(b, off, len);
+            } catch (IOException e) {
+                logger.warning(String.format("Failed to add log line: %s to journal: %s",
+                        new String(b, off, len, LogBatch.UTF8), e.getMessage()));
+                return;
+            }
+        }
+
+        feedTail.add(b, off, len);
+        scheduleFeed();
+
+        if (journalOnly) {
+            return;
+        }
+
+        try {
+            logs.add(b, off, len);
+        } catch (IOException e) {
+            if (journal == null) {
+                logger.warning(String.format("Failed to add log line: %s to buffer: %s",
+                        new String(b, off, len, LogBatch.UTF8), e.getMessage()));
+                return;
+            }
+
+            logger.warning(String.format("Failed to add log line to buffer: %s, uploading logs from the journal only",
+                    e.getMessage()));
+            journalOnly = true;
+        }
+    }
+
+    private void flushJournal() {
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            logger.warning("Failed to flush log journal: " + e.getMessage());
         }
     }
 
@@ -53,54 +453,411 @@ public class TfsRemoteConsoleLogAppender extends LineTransformationOutputStream
         delegate.flush();
     }
 
+    /**
+     * Close the console, lines not uploaded yet keep going to TFS in the background
+     *
+     * Nothing here waits for TFS.  Once every line is confirmed uploaded the journal is deleted, until
+     * then it survives failed uploads and restarts of Jenkins.
+     */
     public void close() throws IOException {
         delegate.close();
-        executorService.shutdown();
 
-        try {
-            if (this.executorService.awaitTermination(30, TimeUnit.SECONDS)) {
-                logger.info("Thread pool has terminated.");
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (droppedLines.get() > 0) {
+            logger.warning(String.format("Dropped %d log lines of TFS build %d", droppedLines.get(),
+                    tfsBuildFacade.getTfsBuildId()));
+        }
 
-                if (!logs.isEmpty()) {
-                    logger.info(String.format("Append %d remaining logs.", logs.size()));
+        lane.execute(finishConsole);
+    }
+
+    public void start() {
+        logger.info(String.format("TFS remote console log appender started, flushing every %d lines, %d bytes or %d ms",
+                batchPolicy.getBatchLines(), batchPolicy.getMaxBytes(), batchPolicy.getMaxLingerMillis()));
+    }
+
+    private boolean isFlushDue() {
+        return consoleDrained || batchPolicy.shouldFlush(logs.size(), logs.byteSize());
+    }
+
+    /*
+     * Flush right away once a full batch is pending, otherwise make sure the pending lines go out after the linger time
+     */
+    private void scheduleFlush() {
+        if (logs.isEmpty() || freeBatches.isEmpty()) {
+            // nothing to do, or every batch is in flight and the one that comes back schedules the flush
+            return;
+        }
 
-                    List<String> lines = new ArrayList<String>(logs.size());
-                    logs.drainTo(lines);
-                    tfsBuildFacade.appendJobLog(lines);
+        try {
+            if (isFlushDue()) {
+                if (flushQueued.compareAndSet(false, true)) {
+                    lane.execute(flushFullBatch);
                 }
+            } else if (lingerArmed.compareAndSet(false, true)) {
+                lane.schedule(flushAfterLinger, batchPolicy.getMaxLingerMillis(), TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // every line has been uploaded and the lanes are closed
+        }
+    }
 
-            } else {
-                logger.warning("Log appender took more than 30 seconds to complete, log maybe incomplete on remote console.");
+    /*
+     * Post the new tail of the console after the feed interval, lines coming in meanwhile are coalesced into that post
+     */
+    private void scheduleFeed() {
+        if (feedArmed.compareAndSet(false, true)) {
+            feedLane.schedule(postFeed, feedIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void postConsoleFeed() {
+        if (!feedTail.hasNewLines()) {
+            return;
+        }
+
+        feedBatch.clear();
+        feedTail.drainTo(feedBatch);
+
+        try {
+            tfsBuildFacade.postConsoleFeed(feedBatch);
+        } catch (RuntimeException e) {
+            // the feed is only a live view, the archived logs have every line
+            logger.warning("Failed to post to the live console feed: " + e.getMessage());
+        }
+    }
+
+    /*
+     * Hand one batch of whatever is pending to the sinks, returns the number of lines shipped
+     */
+    private int shipBatch() {
+        InFlightBatch batch = freeBatches.poll();
+        if (batch == null) {
+            return 0;
+        }
+
+        return dispatch(batch) ? batch.lines : 0;
+    }
+
+    /*
+     * Fill the batch from the buffer and send it to every sink, or put it back if there is nothing to send
+     */
+    private boolean dispatch(InFlightBatch batch) {
+        batch.batch.clear();
+        batch.lines = logs.drainTo(batch.batch, batchPolicy.getBatchLines(), batchPolicy.getMaxBytes());
+
+        if (batch.lines == 0) {
+            freeBatches.offer(batch);
+            checkComplete();
+            return false;
+        }
+
+        // sinks that fall behind read the batch back from the journal
+        flushJournal();
+
+        // the journal holds the same newline terminated lines as the batch
+        batch.startOffset = dispatchedEnd;
+        batch.endOffset = dispatchedEnd + batch.batch.byteSize();
+        dispatchedEnd = batch.endOffset;
+
+        batch.pendingSinks.set(sinks.length);
+        batch.dispatchedAt = System.nanoTime();
+
+        for (LogSink sink : sinks) {
+            sink.submit(batch);
+        }
+
+        return true;
+    }
+
+    /*
+     * Called by each sink once it is done with the batch, the last one recycles it
+     */
+    private void sinkDone(InFlightBatch batch) {
+        if (batch.pendingSinks.decrementAndGet() > 0) {
+            return;
+        }
+
+        // the batch is visible once the slowest sink is done, that is the round trip the policy adapts to
+        batchPolicy.onBatchShipped(batch.lines, System.nanoTime() - batch.dispatchedAt);
+
+        freeBatches.offer(batch);
+        scheduleFlush();
+        checkComplete();
+    }
+
+    /*
+     * Once the console is closed and every sink has everything, drop the journal and release the lanes.
+     * A sink that can not upload keeps retrying, so until then the journal stays, for the recovery after a
+     * restart if Jenkins goes down first.
+     */
+    private void checkComplete() {
+        if (!consoleDrained || !logs.isEmpty() || freeBatches.size() < maxInFlight) {
+            return;
+        }
+
+        long end = journal == null ? dispatchedEnd : journal.length();
+        for (LogSink sink : sinks) {
+            if (!sink.isUploaded(end)) {
+                return;
             }
+        }
+
+        if (!completed.compareAndSet(false, true)) {
+            return;
+        }
 
-        } catch (InterruptedException e) {
-            logger.warning("Console log appender interrupted, log maybe incomplete on remote console.");
+        if (journal != null) {
+            journal.delete();
         }
+        logs.close();
+        overflow.close();
+
+        lane.shutdown();
+        feedLane.shutdown();
+        for (LogSink sink : sinks) {
+            sink.lane.shutdown();
+        }
+
+        logger.info(String.format("Uploaded all logs of TFS build %d", tfsBuildFacade.getTfsBuildId()));
     }
 
-    public void start() {
-        final Runnable logAppender = new Runnable() {
+    /*
+     * A batch shared by all sinks while they upload it
+     */
+    private static final class InFlightBatch {
+        final LogBatch batch = new LogBatch();
+        final AtomicInteger pendingSinks = new AtomicInteger();
+        int lines;
+        long dispatchedAt;
 
+        /* where the lines of the batch are in the journal */
+        long startOffset;
+        long endOffset;
+    }
+
+    /*
+     * One TFS log with its own serial lane, which checkpoints what it uploaded in the journal.
+     *
+     * Batches are uploaded straight from memory as long as they line up with the checkpoint.  After a
+     * failed upload the sink falls behind, ignores the batches handed to it and reads the lines back from
+     * the journal with increasing retry delays until it has caught up with the shipper again.  It does not
+     * give up: once the delay reached MAX_RETRY_DELAY_MILLIS it keeps trying at that pace, and the journal
+     * keeps the rest of the log for the recovery if Jenkins restarts meanwhile.
+     */
+    private abstract class LogSink {
+        final LogShippingEngine.Lane lane;
+        private final TfsLogDestination destination;
+
+        /* used while catching up from the journal */
+        private final LogBatch journalBatch = new LogBatch();
+
+        /* offset up to which TFS has confirmed the log, only written on the sink's lane */
+        private volatile long confirmed;
+
+        /* only touched on the sink's lane */
+        private boolean behind;
+        private long retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+
+        private final Runnable catchUp = new Runnable() {
             public void run() {
-                List<String> lines = new ArrayList<String>(100);
+                catchUpFromJournal();
+            }
+        };
+
+        LogSink(LogShippingEngine.Lane lane, TfsLogDestination destination) {
+            this.lane = lane;
+            this.destination = destination;
+            this.confirmed = journal == null ? 0 : journal.getCheckpoint(destination.getLogId());
+        }
 
-                String line;
-                while ((line = logs.poll()) != null) {
-                    lines.add(line);
+        abstract void send(LogBatch batch);
 
-                    if (lines.size() >= 100) {
-                        tfsBuildFacade.appendJobLog(lines);
-                        lines.clear();
+        void submit(final InFlightBatch batch) {
+            lane.execute(new Runnable() {
+                public void run() {
+                    try {
+                        deliver(batch);
+                    } finally {
+                        sinkDone(batch);
                     }
                 }
+            });
+        }
+
+        /*
+         * Whether TFS has confirmed everything up to the journal offset
+         */
+        boolean isUploaded(long offset) {
+            return confirmed >= offset;
+        }
+
+        private void deliver(InFlightBatch batch) {
+            if (journal == null) {
+                deliverOnce(batch);
+                return;
+            }
 
-                if (!lines.isEmpty()) {
-                    tfsBuildFacade.appendJobLog(lines);
+            if (!behind && !journalOnly && batch.startOffset == confirmed) {
+                try {
+                    send(batch.batch);
+                    confirm(batch.endOffset);
+                    return;
+                } catch (RuntimeException e) {
+                    logger.warning(String.format("Failed to upload to %s: %s, resuming from the journal",
+                            destination, e.getMessage()));
                 }
             }
-        };
 
-        logger.info("TFS remote console log appender started");
-        executorService.scheduleWithFixedDelay(logAppender, 1, 1, TimeUnit.SECONDS);
+            if (batch.endOffset > confirmed && !behind) {
+                behind = true;
+                retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+                lane.execute(catchUp);
+            }
+        }
+
+        /*
+         * Without a journal there is nothing to read a failed batch back from, its lines are lost
+         */
+        private void deliverOnce(InFlightBatch batch) {
+            try {
+                send(batch.batch);
+            } catch (RuntimeException e) {
+                logger.warning(String.format("Failed to upload to %s: %s, %d lines are lost",
+                        destination, e.getMessage(), batch.lines));
+            }
+
+            confirmed = batch.endOffset;
+        }
+
+        /*
+         * Upload one batch from the journal per turn, until the sink is back at the shipper's position
+         */
+        private void catchUpFromJournal() {
+            if (completed.get()) {
+                return;
+            }
+
+            long limit = journalOnly ? journal.length() : dispatchedEnd;
+            try {
+                if (confirmed < limit) {
+                    journalBatch.clear();
+                    int read = journal.read(confirmed, limit, journalBatch,
+                            batchPolicy.getBatchLines(), batchPolicy.getMaxBytes());
+
+                    send(journalBatch);
+                    confirm(confirmed + read);
+                    retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+                }
+            } catch (IOException e) {
+                retryLater(e);
+                return;
+            } catch (RuntimeException e) {
+                retryLater(e);
+                return;
+            }
+
+            if (confirmed < limit) {
+                lane.execute(catchUp);
+            } else if (journalOnly) {
+                // batches no longer line up with the journal, keep following it
+                lane.schedule(catchUp, batchPolicy.getMaxLingerMillis(), TimeUnit.MILLISECONDS);
+                checkComplete();
+            } else {
+                behind = false;
+                logger.info(String.format("Upload to %s caught up at offset %d", destination, confirmed));
+                checkComplete();
+            }
+        }
+
+        private void confirm(long offset) {
+            try {
+                journal.checkpoint(destination.getLogId(), offset);
+            } catch (IOException e) {
+                // the lines are uploaded, at worst they are uploaded again after a restart
+                logger.warning("Failed to checkpoint log journal: " + e.getMessage());
+            }
+
+            // only now, once this is visible the journal may be deleted
+            confirmed = offset;
+        }
+
+        private void retryLater(Exception e) {
+            logger.warning(String.format("Failed to upload to %s from offset %d: %s, retrying in %d ms",
+                    destination, confirmed, e.getMessage(), retryDelayMillis));
+
+            lane.schedule(catchUp, retryDelayMillis, TimeUnit.MILLISECONDS);
+            retryDelayMillis = Math.min(retryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Byte level equivalent of {@code ConsoleNote.removeNotes(line).trim()}.
+     *
+     * The line is compacted in place to the start of the array, the encoding of notes and the whitespace
+     * trimmed by {@link String#trim()} are plain ASCII, so this works on the encoded bytes directly.
+     *
+     * @return length of the stripped line
+     */
+    static int removeNotesAndTrim(byte[] b, int len) {
+        byte[] preamble = ConsoleNote.PREAMBLE;
+        byte[] postamble = ConsoleNote.POSTAMBLE;
+
+        int out = 0;
+        int i = 0;
+        while (i < len) {
+            if (b[i] == preamble[0] && regionMatches(b, i, len, preamble)) {
+                int end = indexOf(b, i + preamble.length, len, postamble);
+                if (end >= 0) {
+                    i = end + postamble.length;
+                    continue;
+                }
+            }
+
+            b[out++] = b[i++];
+        }
+
+        int end = out;
+        while (end > 0 && (b[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+
+        int start = 0;
+        while (start < end && (b[start] & 0xff) <= ' ') {
+            start++;
+        }
+
+        if (start > 0) {
+            System.arraycopy(b, start, b, 0, end - start);
+        }
+
+        return end - start;
+    }
+
+    private static int indexOf(byte[] b, int from, int len, byte[] pattern) {
+        for (int i = from; i <= len - pattern.length; i++) {
+            if (b[i] == pattern[0] && regionMatches(b, i, len, pattern)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean regionMatches(byte[] b, int offset, int len, byte[] pattern) {
+        if (offset + pattern.length > len) {
+            return false;
+        }
+
+        for (int i = 1; i < pattern.length; i++) {
+            if (b[offset + i] != pattern[i]) {
+                return false;
+            }
+        }
+
+        return true;
     }
 }
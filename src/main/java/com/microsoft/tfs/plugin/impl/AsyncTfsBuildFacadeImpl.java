@@ -0,0 +1,229 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.microsoft.tfs.plugin.AsyncTfsBuildFacade;
+import com.microsoft.tfs.plugin.LogShippingEngine;
+import com.microsoft.tfs.plugin.TfsBuildFacade;
+import com.microsoft.tfs.plugin.TfsBuildState;
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the calls of a {@link TfsBuildFacade} on an executor instead of the calling thread.
+ *
+ * By default all facades of one TFS build share a lane, so the wrapper's start calls and the
+ * notifier's finish calls of a build keep their order, and the start calls of all builds share a few
+ * workers instead of blocking build executors.  The notifier waits for its finish calls, as nothing
+ * would make them again after a restart.  A call may hold its worker while it waits for retries and
+ * for the request budget of its server, so each server gets an engine of its own, apart from the log
+ * shippers, and a slow server only holds up the calls of its own builds.
+ * The lane is released once the TFS build is finished, or at the latest once the Jenkins build is
+ * finalized, in case it never got to finish its TFS build.
+ */
+public class AsyncTfsBuildFacadeImpl implements AsyncTfsBuildFacade {
+
+    private static final Logger logger = Logger.getLogger(AsyncTfsBuildFacadeImpl.class.getName());
+
+    public static final String WORKERS_PROPERTY = AsyncTfsBuildFacadeImpl.class.getName() + ".workers";
+
+    private static final int DEFAULT_WORKERS = 2;
+
+    private static final int SHUTDOWN_WAIT_SECONDS = 10;
+
+    /* engines of the servers builds were run against, keyed by normalized server url */
+    private static final ConcurrentMap<String, LogShippingEngine> engines =
+            new ConcurrentHashMap<String, LogShippingEngine>();
+
+    /* lanes of the builds not finished yet, keyed by plan id which unlike the build id is unique across servers */
+    private static final ConcurrentMap<UUID, LogShippingEngine.Lane> lanes =
+            new ConcurrentHashMap<UUID, LogShippingEngine.Lane>();
+
+    private final TfsBuildFacade facade;
+    private final Executor executor;
+
+    public AsyncTfsBuildFacadeImpl(TfsBuildFacade facade, Executor executor) {
+        this.facade = facade;
+        this.executor = executor;
+    }
+
+    /**
+     * @param serverUrl server of the facade's TFS build, whose engine the calls run on
+     * @return an async facade running on the lane of the facade's TFS build
+     */
+    public static AsyncTfsBuildFacade forBuild(TfsBuildFacade facade, String serverUrl) {
+        UUID planId = facade.getTaskLogDestination().getPlanId();
+
+        LogShippingEngine.Lane lane = lanes.get(planId);
+        if (lane == null) {
+            LogShippingEngine.Lane created = getEngine(serverUrl).newLane("TFS build " + facade.getTfsBuildId() + " calls");
+            lane = lanes.putIfAbsent(planId, created);
+            if (lane == null) {
+                lane = created;
+            }
+        }
+
+        return new AsyncTfsBuildFacadeImpl(facade, lane);
+    }
+
+    private static synchronized LogShippingEngine getEngine(String serverUrl) {
+        String server = TfsClientCache.normalizeUrl(serverUrl);
+
+        LogShippingEngine engine = engines.get(server);
+        if (engine == null) {
+            engine = LogShippingEngine.create("TFS build calls to " + server,
+                    Integer.getInteger(WORKERS_PROPERTY, DEFAULT_WORKERS));
+            engines.put(server, engine);
+        }
+
+        return engine;
+    }
+
+    public ListenableFuture<Void> startBuild() {
+        return submit(new Call("start build") {
+            void call() {
+                facade.startBuild();
+            }
+        });
+    }
+
+    public ListenableFuture<Void> finishBuild() {
+        return submit(new Call("finish build") {
+            void call() {
+                try {
+                    facade.finishBuild();
+                } finally {
+                    releaseLane(facade.getTaskLogDestination().getPlanId());
+                }
+            }
+        });
+    }
+
+    public ListenableFuture<Void> startAllTaskRecords() {
+        return submit(new Call("start task records") {
+            void call() {
+                facade.startAllTaskRecords();
+            }
+        });
+    }
+
+    public ListenableFuture<Void> finishAllTaskRecords() {
+        return submit(new Call("finish task records") {
+            void call() {
+                facade.finishAllTaskRecords();
+            }
+        });
+    }
+
+    public TfsBuildFacade getFacade() {
+        return facade;
+    }
+
+    private ListenableFuture<Void> submit(Call call) {
+        try {
+            executor.execute(call);
+        } catch (RejectedExecutionException e) {
+            call.fail(e);
+        }
+
+        return call.future;
+    }
+
+    /*
+     * Calls already on the lane still run, the lane just takes no more
+     */
+    static void releaseLane(UUID planId) {
+        LogShippingEngine.Lane lane = lanes.remove(planId);
+        if (lane != null) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * @return number of builds holding a lane
+     */
+    static int getLaneCount() {
+        return lanes.size();
+    }
+
+    /**
+     * Releases the lane of a build whose TFS build was not finished, because its notifier was removed
+     * or the build was aborted before it ran
+     */
+    @Extension
+    public static final class LaneReleaser extends RunListener<AbstractBuild> {
+        public LaneReleaser() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onFinalized(AbstractBuild build) {
+            TfsBuildState state = build.getAction(TfsBuildState.class);
+            if (state != null) {
+                releaseLane(state.getPlanId());
+            }
+        }
+    }
+
+    /**
+     * Stops the workers and the timers of the calls engines when Jenkins shuts down, after the calls
+     * already queued got a chance to run
+     */
+    @Extension
+    public static final class EngineStopper extends ItemListener {
+        @Override
+        public void onBeforeShutdown() {
+            for (Map.Entry<String, LogShippingEngine> engine : engines.entrySet()) {
+                try {
+                    if (!engine.getValue().shutdownAndAwait(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                        logger.warning("Could not make all queued TFS build calls to " + engine.getKey()
+                                + ", those left are dropped");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private abstract class Call implements Runnable {
+        private final String name;
+        private final SettableFuture<Void> future = SettableFuture.create();
+
+        Call(String name) {
+            this.name = name;
+        }
+
+        abstract void call();
+
+        public void run() {
+            try {
+                call();
+                future.set(null);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        void fail(RuntimeException e) {
+            logger.log(Level.WARNING, String.format("Failed to %s of TFS build %d", name, facade.getTfsBuildId()), e);
+            future.setException(e);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Gzip the bodies of log uploads.
+ *
+ * Log appends are the only binary (application/octet-stream) requests we send, those get
+ * {@code Content-Encoding: gzip}.  Deflaters are borrowed from a small pool, so the shipper workers
+ * do not allocate native zlib state per request; those that do not fit back into the pool are ended.
+ *
+ * If the server answers 415 to a compressed body, compression is switched off for this client and
+ * callers can retry uncompressed.  A 400 may have nothing to do with the encoding, so only a run of
+ * them on compressed uploads, with no success in between, switches compression off.
+ */
+final class GzipLogUploadInterceptor implements WriterInterceptor, ClientResponseFilter {
+
+    private static final Logger logger = Logger.getLogger(GzipLogUploadInterceptor.class.getName());
+
+    private static final String GZIP = "gzip";
+
+    /* compressed uploads in a row answered 400 before compression is switched off */
+    private static final int MAX_BAD_REQUESTS = 3;
+
+    /* about one per shipper worker */
+    private static final int MAX_POOLED_DEFLATERS = 8;
+
+    private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(MAX_POOLED_DEFLATERS);
+
+    private final AtomicBoolean enabled;
+
+    private final AtomicInteger badRequests = new AtomicInteger();
+
+    GzipLogUploadInterceptor(boolean enabled) {
+        this.enabled = new AtomicBoolean(enabled);
+    }
+
+    boolean isEnabled() {
+        return enabled.get();
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled.set(enabled);
+    }
+
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        if (!enabled.get() || !MediaType.APPLICATION_OCTET_STREAM_TYPE.isCompatible(context.getMediaType())) {
+            context.proceed();
+            return;
+        }
+
+        context.getHeaders().putSingle(HttpHeaders.CONTENT_ENCODING, GZIP);
+
+        Deflater deflater = borrowDeflater();
+        try {
+            GzipOutputStream gzip = new GzipOutputStream(context.getOutputStream(), deflater);
+            context.setOutputStream(gzip);
+            context.proceed();
+            gzip.finish();
+        } finally {
+            returnDeflater(deflater);
+        }
+    }
+
+    private static Deflater borrowDeflater() {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            // logs compress well even at the fastest level, and nowrap since we write the gzip framing ourselves
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+
+        return deflater;
+    }
+
+    private static void returnDeflater(Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) {
+        if (!GZIP.equals(requestContext.getHeaderString(HttpHeaders.CONTENT_ENCODING))) {
+            return;
+        }
+
+        int status = responseContext.getStatus();
+        if (status == Response.Status.UNSUPPORTED_MEDIA_TYPE.getStatusCode()) {
+            disable(status);
+        } else if (status == Response.Status.BAD_REQUEST.getStatusCode()) {
+            if (badRequests.incrementAndGet() >= MAX_BAD_REQUESTS) {
+                disable(status);
+            }
+        } else if (status < 300) {
+            badRequests.set(0);
+        }
+    }
+
+    private void disable(int status) {
+        if (enabled.compareAndSet(true, false)) {
+            logger.warning(String.format("Server rejected gzip compressed log upload with HTTP %d, "
+                    + "sending logs uncompressed from now on", status));
+        }
+    }
+
+    /*
+     * Gzip framing around a borrowed Deflater, which is reset instead of ended
+     */
+    private static final class GzipOutputStream extends DeflaterOutputStream {
+        private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+        private final CRC32 crc = new CRC32();
+        private boolean finished;
+
+        GzipOutputStream(OutputStream out, Deflater deflater) throws IOException {
+            super(out, deflater, 8192);
+            deflater.reset();
+            out.write(HEADER);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+
+            super.finish();
+            writeIntLE((int) crc.getValue());
+            writeIntLE(def.getTotalIn());
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the underlying stream belongs to the request, do not close it and do not end the deflater
+            finish();
+        }
+
+        private void writeIntLE(int value) throws IOException {
+            out.write(value & 0xff);
+            out.write((value >> 8) & 0xff);
+            out.write((value >> 16) & 0xff);
+            out.write((value >> 24) & 0xff);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import com.microsoft.tfs.plugin.LogBatch;
+
+import java.io.InputStream;
+
+/**
+ * Turns a log batch into the payload of the job log, every line prefixed with the task name.
+ *
+ * The prefix is encoded once per task, and the payload is streamed straight out of the batch's
+ * backing array, so no copy of the batch is made.
+ */
+final class LogBatchEncoder {
+
+    private final byte[] prefix;
+
+    LogBatchEncoder(String taskName) {
+        this.prefix = ("[" + taskName + "] ").getBytes(LogBatch.UTF8);
+    }
+
+    /**
+     * @return payload for the job log, each line prefixed with the task name
+     */
+    InputStream jobLogPayload(LogBatch batch) {
+        return new PrefixedLinesInputStream(batch, prefix);
+    }
+
+    /*
+     * Reads the lines of a batch with the prefix in front of each of them
+     */
+    private static final class PrefixedLinesInputStream extends InputStream {
+        private final LogBatch batch;
+        private final byte[] prefix;
+
+        private int line;
+
+        /* offset into the prefix while batchPosition < 0, then offset of the next byte of the line in the batch */
+        private int prefixPosition;
+        private int batchPosition = -1;
+
+        PrefixedLinesInputStream(LogBatch batch, byte[] prefix) {
+            this.batch = batch;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+
+            int copied = 0;
+            while (copied < len && line < batch.size()) {
+                if (batchPosition < 0) {
+                    int n = Math.min(len - copied, prefix.length - prefixPosition);
+                    System.arraycopy(prefix, prefixPosition, b, off + copied, n);
+                    prefixPosition += n;
+                    copied += n;
+
+                    if (prefixPosition == prefix.length) {
+                        batchPosition = batch.lineStart(line);
+                    }
+                } else {
+                    // the newline terminating the line is part of the payload
+                    int lineEnd = batch.lineEnd(line) + 1;
+                    int n = Math.min(len - copied, lineEnd - batchPosition);
+                    System.arraycopy(batch.array(), batchPosition, b, off + copied, n);
+                    batchPosition += n;
+                    copied += n;
+
+                    if (batchPosition == lineEnd) {
+                        line++;
+                        prefixPosition = 0;
+                        batchPosition = -1;
+                    }
+                }
+            }
+
+            return copied == 0 ? -1 : copied;
+        }
+    }
+}
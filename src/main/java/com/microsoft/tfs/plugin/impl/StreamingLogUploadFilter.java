@@ -0,0 +1,32 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
+
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Send log uploads as chunked streams.
+ *
+ * Clients buffer request bodies, so the body of a log upload was copied into a byte array in full
+ * before it went out.  Log uploads, the binary (application/octet-stream) requests, are switched
+ * to chunked instead and written straight from the batch to the connection, through the gzip
+ * interceptor if compression is on.
+ *
+ * A chunked body can not be sent twice, so this is only for clients that never have to: not with
+ * NTLM, whose handshake replays the request, and not through a proxy that may ask to authenticate.
+ */
+final class StreamingLogUploadFilter implements ClientRequestFilter {
+
+    public void filter(ClientRequestContext requestContext) {
+        MediaType type = requestContext.getMediaType();
+        if (type != null && MediaType.APPLICATION_OCTET_STREAM_TYPE.isCompatible(type)) {
+            requestContext.setProperty(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED);
+        }
+    }
+}
@@ -7,8 +7,11 @@ import com.microsoft.teamfoundation.build.webapi.model.*;
 import com.microsoft.teamfoundation.core.webapi.model.TeamProjectReference;
 import com.microsoft.tfs.plugin.TfsBuildFacade;
 import com.microsoft.tfs.plugin.TfsBuildFacadeFactory;
+import com.microsoft.tfs.plugin.TfsBuildState;
+import hudson.Extension;
 import hudson.Util;
 import hudson.model.AbstractBuild;
+import hudson.model.listeners.ItemListener;
 import hudson.plugins.git.BranchSpec;
 import hudson.plugins.git.GitSCM;
 import hudson.scm.SCM;
@@ -22,32 +25,32 @@ public class TfsBuildFacadeFactoryImpl implements TfsBuildFacadeFactory {
 
     private static final Logger logger = Logger.getLogger(TfsBuildFacadeFactoryImpl.class.getName());
 
-    public TfsBuildFacade createBuildOnTfs(String projectId, int buildDefinition, AbstractBuild jenkinsBuild, TfsClient tfsClient) {
+    public TfsBuildFacade createBuildOnTfs(final String projectId, final int buildDefinition, AbstractBuild jenkinsBuild,
+                                           final TfsClient tfsClient) {
         if (jenkinsBuild == null || tfsClient == null) {
             throw new IllegalArgumentException("Arguments cannot be null");
         }
 
-        TeamProjectReference project = tfsClient.getProjectClient().getProject(projectId);
-        if (project == null) {
-            throw new RuntimeException(String.format("Could not find the project: %s", projectId));
-        }
+        final String branch = getBranch(jenkinsBuild.getProject().getScm());
 
-        DefinitionReference definition = tfsClient.getBuildClient().getDefinition(project.getId(), buildDefinition, null, null);
-        if (definition == null) {
-            throw new RuntimeException(String.format("Could not find the buildDefinition: %d", buildDefinition));
-        }
+        TfsWarmBuildPool pool = TfsWarmBuildPool.get();
+        if (pool.isEnabled()) {
+            TfsBuildFacadeImpl warm = pool.claim(TfsWarmBuildPool.key(tfsClient, projectId, buildDefinition, branch),
+                    new TfsCall<TfsBuildFacadeImpl>() {
+                        public TfsBuildFacadeImpl call() {
+                            Build queuedBuild = queueBuild(projectId, buildDefinition, branch, tfsClient);
+                            return new TfsBuildFacadeImpl(queuedBuild, TfsWarmBuildPool.PLACEHOLDER_TASK_NAME, tfsClient);
+                        }
+                    });
 
-        List<AgentPoolQueue> queues = tfsClient.getBuildClient().getQueues(null);
-        if (queues == null || queues.isEmpty()) {
-            logger.info("Creating JenkinsPluginQueue on TeamFoundationServer");
-            queues = createTfsBuildQueue(tfsClient);
+            if (warm != null) {
+                logger.info(String.format("Claimed warm build %d on TFS", warm.getTfsBuildId()));
+                warm.attach(jenkinsBuild);
+                return warm;
+            }
         }
 
-        AgentPoolQueue anyQueue = queues.get(0);
-        Build buildContainer = createBuildContainer(project, definition, anyQueue, jenkinsBuild.getProject().getScm());
-        Build queuedBuild = tfsClient.getBuildClient().queueBuild(buildContainer, true);
-
-        logger.info(String.format("Queued build on TFS with plan Id %s", queuedBuild.getOrchestrationPlan().getPlanId()));
+        Build queuedBuild = queueBuild(projectId, buildDefinition, branch, tfsClient);
 
         return new TfsBuildFacadeImpl(queuedBuild, jenkinsBuild, tfsClient);
     }
@@ -58,6 +61,82 @@ public class TfsBuildFacadeFactoryImpl implements TfsBuildFacadeFactory {
         return new TfsBuildFacadeImpl(tfsBuild, jenkinsBuild, tfsClient);
     }
 
+    public TfsBuildFacade getBuildOnTfs(TfsBuildState state, AbstractBuild jenkinsBuild, TfsClient tfsClient) {
+        return new TfsBuildFacadeImpl(state, jenkinsBuild, tfsClient);
+    }
+
+    private Build queueBuild(final String projectId, final int buildDefinition, final String branch,
+                             final TfsClient tfsClient) {
+        TfsMetadataCache cache = TfsMetadataCache.get();
+        Build queuedBuild = cache.callRefreshingOnNotFound("Queueing a build of definition " + buildDefinition,
+                new TfsCall<Build>() {
+                    public Build call() {
+                        TeamProjectReference project = getProject(projectId, tfsClient);
+                        DefinitionReference definition = getDefinition(projectId, project, buildDefinition, tfsClient);
+                        AgentPoolQueue anyQueue = getQueue(tfsClient);
+
+                        Build buildContainer = createBuildContainer(project, definition, anyQueue, branch);
+                        return tfsClient.getBuildClient().queueBuild(buildContainer, true);
+                    }
+                },
+                TfsMetadataCache.key(tfsClient, "project", projectId),
+                TfsMetadataCache.key(tfsClient, "definition", projectId, buildDefinition),
+                TfsMetadataCache.key(tfsClient, "queue"));
+
+        logger.info(String.format("Queued build on TFS with plan Id %s", queuedBuild.getOrchestrationPlan().getPlanId()));
+
+        return queuedBuild;
+    }
+
+    private TeamProjectReference getProject(final String projectId, final TfsClient tfsClient) {
+        TeamProjectReference project = TfsMetadataCache.get().get(TfsMetadataCache.key(tfsClient, "project", projectId),
+                new TfsCall<TeamProjectReference>() {
+                    public TeamProjectReference call() {
+                        return tfsClient.getProjectClient().getProject(projectId);
+                    }
+                });
+
+        if (project == null) {
+            throw new RuntimeException(String.format("Could not find the project: %s", projectId));
+        }
+
+        return project;
+    }
+
+    private DefinitionReference getDefinition(String projectId, final TeamProjectReference project, final int buildDefinition,
+                                              final TfsClient tfsClient) {
+        DefinitionReference definition = TfsMetadataCache.get().get(
+                TfsMetadataCache.key(tfsClient, "definition", projectId, buildDefinition),
+                new TfsCall<DefinitionReference>() {
+                    public DefinitionReference call() {
+                        return tfsClient.getBuildClient().getDefinition(project.getId(), buildDefinition, null, null);
+                    }
+                });
+
+        if (definition == null) {
+            throw new RuntimeException(String.format("Could not find the buildDefinition: %d", buildDefinition));
+        }
+
+        return definition;
+    }
+
+    /*
+     * Builds go to the first queue of the server, creating one if there is none
+     */
+    private AgentPoolQueue getQueue(final TfsClient tfsClient) {
+        return TfsMetadataCache.get().get(TfsMetadataCache.key(tfsClient, "queue"), new TfsCall<AgentPoolQueue>() {
+            public AgentPoolQueue call() {
+                List<AgentPoolQueue> queues = tfsClient.getBuildClient().getQueues(null);
+                if (queues == null || queues.isEmpty()) {
+                    logger.info("Creating JenkinsPluginQueue on TeamFoundationServer");
+                    queues = createTfsBuildQueue(tfsClient);
+                }
+
+                return queues.get(0);
+            }
+        });
+    }
+
     private List<AgentPoolQueue> createTfsBuildQueue(TfsClient tfsClient) {
         AgentPoolQueue queue = new AgentPoolQueue();
         queue.setName("JenkinsPluginQueue");
@@ -67,7 +146,7 @@ public class TfsBuildFacadeFactoryImpl implements TfsBuildFacadeFactory {
         return Collections.singletonList(queue);
     }
 
-    private Build createBuildContainer(TeamProjectReference project, DefinitionReference definition, AgentPoolQueue queue, SCM scm) {
+    private Build createBuildContainer(TeamProjectReference project, DefinitionReference definition, AgentPoolQueue queue, String branch) {
         Build b = new Build();
         b.setQueue(queue);
         b.setDefinition(definition);
@@ -77,7 +156,7 @@ public class TfsBuildFacadeFactoryImpl implements TfsBuildFacadeFactory {
         b.setDemands(Collections.<Demand>emptyList());
         b.setQueueOptions(QueueOptions.DO_NOT_RUN);
 
-        b.setSourceBranch(getBranch(scm));
+        b.setSourceBranch(branch);
 
         return b;
     }
@@ -137,4 +216,15 @@ public class TfsBuildFacadeFactoryImpl implements TfsBuildFacadeFactory {
 
         return branchStr;
     }
+
+    /**
+     * Cancels the warm builds still in the pool when Jenkins shuts down, so they do not stay queued on TFS
+     */
+    @Extension
+    public static final class WarmBuildCanceler extends ItemListener {
+        @Override
+        public void onBeforeShutdown() {
+            TfsWarmBuildPool.get().shutDown();
+        }
+    }
 }
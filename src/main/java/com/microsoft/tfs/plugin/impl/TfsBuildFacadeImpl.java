@@ -3,14 +3,18 @@
 
 package com.microsoft.tfs.plugin.impl;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.microsoft.teamfoundation.build.webapi.model.Build;
 import com.microsoft.teamfoundation.build.webapi.model.BuildResult;
 import com.microsoft.teamfoundation.build.webapi.model.BuildStatus;
@@ -20,8 +24,10 @@ import com.microsoft.teamfoundation.distributedtask.webapi.model.TaskOrchestrati
 import com.microsoft.teamfoundation.distributedtask.webapi.model.TaskResult;
 import com.microsoft.teamfoundation.distributedtask.webapi.model.TimelineRecord;
 import com.microsoft.teamfoundation.distributedtask.webapi.model.TimelineRecordState;
-import com.microsoft.teamfoundation.distributedtask.webapi.model.TimelineReference;
+import com.microsoft.tfs.plugin.LogBatch;
 import com.microsoft.tfs.plugin.TfsBuildFacade;
+import com.microsoft.tfs.plugin.TfsBuildState;
+import com.microsoft.tfs.plugin.TfsLogDestination;
 
 import hudson.model.AbstractBuild;
 import hudson.plugins.git.Revision;
@@ -34,7 +40,8 @@ import hudson.model.Result;
  * All updates to TFS build should go through this class.  Also deliberately this
  * class only contains IDs and does not keep state.  All build update operation are PATCH
  * based, and this object maybe out of sync with what is really happening on TFS,
- * so we GET the object from the IDs and then PATCH the server
+ * so we do not send back what we read earlier: each update is a PATCH of only the
+ * fields it changes, addressed by the IDs, without reading the object first
  */
 public class TfsBuildFacadeImpl implements TfsBuildFacade {
 
@@ -47,6 +54,28 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
     private static final String JOB_RECORD_NAME = "Build";
     private static final String JENKINS_RECORD_TYPE = "Task";
     private static final String JENKINS_WORKER_NAME = "Jenkins";
+    private static final String JOB_RECORD_DISPLAY_NAME = "Jenkins Build";
+
+    private static final int SETUP_THREADS = 4;
+
+    /*
+     * Creates the job record's log while the constructing thread creates the task record's.  When
+     * many builds start at once, their job logs wait for a thread.
+     */
+    private static final ThreadPoolExecutor setupExecutor = new ThreadPoolExecutor(SETUP_THREADS, SETUP_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TFS build setup #" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    static {
+        setupExecutor.allowCoreThreadTimeOut(true);
+    }
 
     /*
      * The Jenkins build which is running
@@ -78,6 +107,11 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
      */
     private UUID jobRecordId;
 
+    /*
+     * The ID of the Jenkins task record
+     */
+    private UUID jenkinsRecordId;
+
     /*
      * The job log id for the job record
      */
@@ -93,6 +127,17 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
      */
     private String jenkinsTaskName;
 
+    /*
+     * Where the lines of the Jenkins task log and of the job log go
+     */
+    private TfsLogDestination jenkinsLogDestination;
+    private TfsLogDestination jobLogDestination;
+
+    /*
+     * Uploads log batches to both logs
+     */
+    private TfsLogUploader logUploader;
+
     /*
      * The TFS REST client
      */
@@ -101,14 +146,26 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
     /* should only be instantiated from TfsBuildFacadeFactoryImpl from same package */
     /* default */
     public TfsBuildFacadeImpl(final Build tfsBuild, final AbstractBuild jenkinsBuild, final TfsClient tfsClient) {
+        this(tfsBuild, jenkinsBuild.getFullDisplayName(), tfsClient);
+        this.jenkinsBuild = jenkinsBuild;
+    }
+
+    /*
+     * Set up the timeline and logs of a build no Jenkins build is attached to yet, for the warm pool
+     */
+    /* default */ TfsBuildFacadeImpl(final Build tfsBuild, final String jenkinsRecordName, final TfsClient tfsClient) {
 
         this.tfsBuildId = tfsBuild.getId();
-        this.jenkinsBuild = jenkinsBuild;
         this.client = tfsClient;
         this.planId = tfsBuild.getOrchestrationPlan().getPlanId();
         this.projectId = tfsBuild.getProject().getId();
 
-        TaskOrchestrationPlan plan = getTaskClient().getPlan(projectId, "build", planId);
+        TaskOrchestrationPlan plan = getClient().retry(TfsRequestPriority.DEFAULT, "getPlan",
+                new TfsCall<TaskOrchestrationPlan>() {
+                    public TaskOrchestrationPlan call() {
+                        return getTaskClient().getPlan(getProjectId(), "build", getPlanId());
+                    }
+                });
 
         this.timelineId = plan.getTimeline().getId();
 
@@ -129,31 +186,81 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
             }
         }
 
+        boolean created = false;
         if (jobRecord == null) {
             jobRecord = createTimelineJobRecord();
             records.add(jobRecord);
+            created = true;
         }
 
         if (jenkinsTaskRecord == null) {
             jenkinsTaskRecord = createTimelineJenkinsTaskRecord(jobRecord, 1);
             records.add(jenkinsTaskRecord);
+            created = true;
         }
 
-        String jobRecordName = "Jenkins Build";
-        jobRecord.setName(jobRecordName);
-        createLogForTimelineRecord(jobRecord);
+        // only send what the server does not have yet, records set up before keep their logs
+        boolean changed = created;
+        changed |= rename(jobRecord, JOB_RECORD_DISPLAY_NAME);
+        changed |= rename(jenkinsTaskRecord, jenkinsRecordName);
+        changed |= createMissingLogs(jobRecord, jenkinsTaskRecord);
 
-        String jenkinsRecordName = jenkinsBuild.getFullDisplayName();
-        jenkinsTaskRecord.setName(jenkinsRecordName);
-        createLogForTimelineRecord(jenkinsTaskRecord);
-
-        updateRecords(records, timelineId);
+        if (changed) {
+            updateRecords(records, timelineId);
+        }
 
         // populate rest of the fields
         this.jobLogId = jobRecord.getLog().getId();;
         this.jenkinsLogId = jenkinsTaskRecord.getLog().getId();
         this.jobRecordId = jobRecord.getId();
+        this.jenkinsRecordId = jenkinsTaskRecord.getId();
         this.jenkinsTaskName = jenkinsRecordName;
+        this.jenkinsLogDestination = new TfsLogDestination(projectId, planId, jenkinsLogId, null);
+        this.jobLogDestination = new TfsLogDestination(projectId, planId, jobLogId, jenkinsRecordName);
+        this.logUploader = new TfsLogUploader(tfsClient);
+    }
+
+    /*
+     * Rebuild the facade of a build set up earlier from its ids, without calling TFS
+     */
+    /* default */ TfsBuildFacadeImpl(final TfsBuildState state, final AbstractBuild jenkinsBuild, final TfsClient tfsClient) {
+        this.tfsBuildId = state.getTfsBuildId();
+        this.jenkinsBuild = jenkinsBuild;
+        this.client = tfsClient;
+        this.planId = state.getPlanId();
+        this.projectId = state.getProjectId();
+        this.timelineId = state.getTimelineId();
+        this.jobRecordId = state.getJobRecordId();
+        this.jenkinsRecordId = state.getJenkinsRecordId();
+        this.jobLogId = state.getJobLogId();
+        this.jenkinsLogId = state.getJenkinsLogId();
+        this.jenkinsTaskName = state.getJenkinsTaskName();
+        this.jenkinsLogDestination = new TfsLogDestination(projectId, planId, jenkinsLogId, null);
+        this.jobLogDestination = new TfsLogDestination(projectId, planId, jobLogId, jenkinsTaskName);
+        this.logUploader = new TfsLogUploader(tfsClient);
+    }
+
+    /**
+     * Attach the Jenkins build to a facade set up ahead of it.  The task record gets the name of the
+     * Jenkins build when the records are started.
+     */
+    /* default */ void attach(AbstractBuild jenkinsBuild) {
+        this.jenkinsBuild = jenkinsBuild;
+        this.jenkinsTaskName = jenkinsBuild.getFullDisplayName();
+        this.jobLogDestination = new TfsLogDestination(projectId, planId, jobLogId, jenkinsTaskName);
+    }
+
+    /**
+     * Complete a build no Jenkins build was ever attached to as canceled
+     */
+    /* default */ void cancel() {
+        Build b = newBuildPatch();
+
+        b.setFinishTime(new Date());
+        b.setResult(BuildResult.CANCELED);
+        b.setStatus(BuildStatus.COMPLETED);
+
+        updateBuild(b);
     }
 
     /**
@@ -165,23 +272,28 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
         return tfsBuildId;
     }
 
+    public TfsBuildState getState() {
+        return new TfsBuildState(tfsBuildId, projectId, planId, timelineId, jobRecordId, jenkinsRecordId,
+                jobLogId, jenkinsLogId, jenkinsTaskName);
+    }
+
     /**
      * Update TFS Build status to started with starting time
      */
     public void startBuild() {
-        Build b = queryTfsBuild();
+        Build b = newBuildPatch();
 
         b.setStartTime(new Date());
         b.setStatus(BuildStatus.IN_PROGRESS);
 
-        getClient().getBuildClient().updateBuild(b, b.getProject().getId(), b.getId());
+        updateBuild(b);
     }
 
     /**
      * Update TFS Build status to finished with Jenkins status
      */
     public void finishBuild() {
-        Build b = queryTfsBuild();
+        Build b = newBuildPatch();
         b.setFinishTime(new Date());
 
         AbstractBuild jenkinsBuild = getJenkinsBuild();
@@ -194,7 +306,7 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
         logger.info("Setting TFS build sourceVersion to: " + commitSha1);
         b.setSourceVersion(commitSha1);
 
-        getClient().getBuildClient().updateBuild(b, b.getProject().getId(), b.getId());
+        updateBuild(b);
     }
 
     /**
@@ -202,13 +314,18 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
      * Jenkins task at the moment.
      */
     public void startAllTaskRecords() {
-        List<TimelineRecord> records = queryTfsTimelineRecords(getTimelineId());
+        List<TimelineRecord> records = newRecordPatches();
         Date startTime = new Date();
 
         for (TimelineRecord record : records) {
             record.setState(TimelineRecordState.IN_PROGRESS);
             record.setStartTime(startTime);
             record.setWorkerName(JENKINS_WORKER_NAME);
+
+            // the task record of a warm build still has the placeholder name
+            if (record.getId().equals(getJenkinsRecordId())) {
+                record.setName(jenkinsTaskName);
+            }
         }
 
         updateRecords(records, getTimelineId());
@@ -219,7 +336,8 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
      * Jenkins task at the moment.
      */
     public void finishAllTaskRecords() {
-        List<TimelineRecord> records = queryTfsTimelineRecords(getTimelineId());
+        List<TimelineRecord> records = newRecordPatches();
+        addUnfinishedRecordPatches(records);
         TaskResult result = convertToTfsTaskResult(getJenkinsBuild().getResult());
         Date finishTime = new Date();
 
@@ -227,83 +345,222 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
             record.setState(TimelineRecordState.COMPLETED);
             record.setFinishTime(finishTime);
             record.setResult(result);
+        }
 
-            TimelineReference detailsRef = record.getDetails();
+        updateRecords(records, getTimelineId());
+    }
 
-            if (detailsRef != null) {
-                List<TimelineRecord> detailRecords = queryTfsTimelineRecords(detailsRef.getId());
+    /**
+     * Posting lines to TFS build console
+     *
+     * The console feed and log appears to be the same due to we have only one task (jenkins) in this build container
+     *
+     * @param batch
+     */
+    public void appendJobLog(LogBatch batch) {
+        postConsoleFeed(batch);
+        appendTaskLog(batch);
+        appendJobRecordLog(batch);
+    }
 
-                if (detailRecords != null) {
-                    for (TimelineRecord detailRecord : detailRecords) {
-                        if (detailRecord.getState() == TimelineRecordState.IN_PROGRESS) {
-                            detailRecord.setState(TimelineRecordState.COMPLETED);
-                            detailRecord.setFinishTime(finishTime);
-                            detailRecord.setResult(result);
-                        }
-                    }
+    /**
+     * Post lines to the live console feed of the job record
+     *
+     * @param batch
+     */
+    public void postConsoleFeed(LogBatch batch) {
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
 
-                    updateRecords(detailRecords, detailsRef.getId());
-                }
+        // the REST API only takes strings
+        final List<String> lines = batch.toStrings();
+        getClient().once(TfsRequestPriority.LOG, "postLines", new TfsCall<Object>() {
+            public Object call() {
+                getTaskClient().postLines(getProjectId(), "build", lines, getPlanId(), getTimelineId(), getJobRecordId());
+                return null;
             }
+        });
+    }
+
+    /**
+     * Append lines to the Jenkins Task log
+     *
+     * @param batch
+     */
+    public void appendTaskLog(LogBatch batch) {
+        if (batch == null || batch.isEmpty()) {
+            return;
         }
 
-        updateRecords(records, getTimelineId());
+        logUploader.append(getTaskLogDestination(), batch);
     }
 
     /**
-     * Posting lines to TFS build console
-     *
-     * The console feed and log appears to be the same due to we have only one task (jenkins) in this build container
+     * Append lines to the Job log, streamed from the batch with the task name in front of each line
      *
-     * @param lines
+     * @param batch
      */
-    public void appendJobLog(List<String> lines) {
-        if (lines == null || lines.size() == 0) {
+    public void appendJobRecordLog(LogBatch batch) {
+        if (batch == null || batch.isEmpty()) {
             return;
         }
 
-        // post console feed
-        getTaskClient().postLines(getProjectId(), "build", lines, getPlanId(), getTimelineId(), getJobRecordId());
+        logUploader.append(getJobLogDestination(), batch);
+    }
+
+    public TfsLogDestination getTaskLogDestination() {
+        return jenkinsLogDestination;
+    }
+
+    public TfsLogDestination getJobLogDestination() {
+        return jobLogDestination;
+    }
+
+    /*
+     * An empty build to set the changed fields on, fields left unset are not sent
+     */
+    private Build newBuildPatch() {
+        Build b = new BuildPatch();
+        b.setId(getTfsBuildId());
+
+        return b;
+    }
 
-        // append the feed to Jenkins Task log
+    /*
+     * Empty job and Jenkins task records, in that order, to set the changed fields on
+     */
+    private List<TimelineRecord> newRecordPatches() {
+        List<TimelineRecord> records = new ArrayList<TimelineRecord>(2);
+        for (UUID recordId : new UUID[] { getJobRecordId(), getJenkinsRecordId() }) {
+            TimelineRecord record = new TimelineRecordPatch();
+            record.setId(recordId);
+            records.add(record);
+        }
+
+        return records;
+    }
+
+    /*
+     * Empty records for the other records of the timeline that are still pending or in progress, such as those
+     * the server or an agent added next to ours, so the build does not end with records left running
+     */
+    private void addUnfinishedRecordPatches(List<TimelineRecord> records) {
+        List<TimelineRecord> current;
         try {
-            getTaskClient().appendLog(getByteArrayInputStream(lines), getProjectId(), "build", getPlanId(), getJenkinsLogId());
-        } catch (IOException e) {
-            logger.severe("Failed to send log to Microsoft TFS: "+e.getMessage());
+            current = queryTfsTimelineRecords(getTimelineId());
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to read the timeline of TFS build " + getTfsBuildId()
+                    + ", only the job and the Jenkins task records are finished", e);
+            return;
         }
 
-        List<String> jobLogLines = new ArrayList();
-        for (String line : lines) {
-            jobLogLines.add("[" + jenkinsTaskName + "] " + line);
+        if (current == null) {
+            return;
         }
 
-        // append the feed to Job log
-        try {
-            getTaskClient().appendLog(getByteArrayInputStream(jobLogLines), getProjectId(), "build", getPlanId(), getJobLogId());
-        } catch (IOException e) {
-            logger.severe("Failed to send log to Microsoft TFS: "+e.getMessage());
+        for (TimelineRecord record : current) {
+            if (record.getId() == null || record.getId().equals(getJobRecordId())
+                    || record.getId().equals(getJenkinsRecordId())) {
+                continue;
+            }
+
+            if (record.getState() == TimelineRecordState.PENDING || record.getState() == TimelineRecordState.IN_PROGRESS) {
+                TimelineRecord patch = new TimelineRecordPatch();
+                patch.setId(record.getId());
+                records.add(patch);
+            }
         }
-        //
     }
 
-    private InputStream getByteArrayInputStream(List<String> lines) throws IOException {
-        // assuming each line is 256-bytes long to avoid grow constantly
-        ByteArrayOutputStream os = new ByteArrayOutputStream(lines.size() * 256);
-        byte[] newLine = String.format("%n").getBytes(Charset.defaultCharset());
-        for (String line : lines) {
-            os.write(line.getBytes(Charset.defaultCharset()));
-            os.write(newLine);
+    private void updateBuild(final Build b) {
+        // the patch sets absolute values, so sending it again does no harm
+        getClient().retry(TfsRequestPriority.STATE, "updateBuild", new TfsCall<Object>() {
+            public Object call() {
+                getClient().getBuildClient().updateBuild(b, getProjectId(), getTfsBuildId());
+                return null;
+            }
+        });
+    }
+
+    private List<TimelineRecord> queryTfsTimelineRecords(final UUID timelineId) {
+        return getClient().retry(TfsRequestPriority.STATE, "getRecords", new TfsCall<List<TimelineRecord>>() {
+            public List<TimelineRecord> call() {
+                return getTaskClient().getRecords(getProjectId(), "build", getPlanId(), timelineId);
+            }
+        });
+    }
+
+    /**
+     * @return true if the record had another name
+     */
+    private boolean rename(TimelineRecord record, String name) {
+        if (name.equals(record.getName())) {
+            return false;
         }
 
-        return new ByteArrayInputStream(os.toByteArray());
+        record.setName(name);
+        return true;
     }
 
-    private Build queryTfsBuild() {
-        return getClient().getBuildClient().getBuild(getTfsBuildId(), null);
+    /**
+     * Create the logs of the records that have none, both at the same time
+     *
+     * @return true if a log was created
+     */
+    /* default */ boolean createMissingLogs(final TimelineRecord jobRecord, TimelineRecord jenkinsTaskRecord) {
+        Future<?> jobLog = null;
+        if (jobRecord.getLog() == null) {
+            jobLog = setupExecutor.submit(new Runnable() {
+                public void run() {
+                    createLogForTimelineRecord(jobRecord);
+                }
+            });
+        }
+
+        boolean created = jobLog != null;
+        RuntimeException failure = null;
+        try {
+            if (jenkinsTaskRecord.getLog() == null) {
+                createLogForTimelineRecord(jenkinsTaskRecord);
+                created = true;
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        if (jobLog != null) {
+            try {
+                await(jobLog);
+            } catch (RuntimeException e) {
+                // report the task record's failure rather than hide it behind this one
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    logger.log(Level.WARNING, "Could not create the log of the job record either", e);
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        return created;
     }
 
-    private List<TimelineRecord> queryTfsTimelineRecords(UUID timelineId) {
-        return getTaskClient().getRecords(getProjectId(), "build", getPlanId(), timelineId);
+    private static void await(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while setting up the TFS build", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
     }
 
     /**
@@ -319,16 +576,25 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
     }
 
     private TaskLog createTfsLog(String path) {
-        TaskLog log = new TaskLog();
+        final TaskLog log = new TaskLog();
         log.setPath(path);
 
         // Note that we should use the TaskLog object returned from the server,
         // but not that we passed as the parameter.
-        return getTaskClient().createLog(getProjectId(), "build", log, getPlanId());
+        return getClient().once(TfsRequestPriority.DEFAULT, "createLog", new TfsCall<TaskLog>() {
+            public TaskLog call() {
+                return getTaskClient().createLog(getProjectId(), "build", log, getPlanId());
+            }
+        });
     }
 
-    private void updateRecords(List<TimelineRecord> timelineRecords, UUID timelineId) {
-        getTaskClient().updateRecords(getProjectId(), "build", timelineRecords, getPlanId(), timelineId);
+    private void updateRecords(final List<TimelineRecord> timelineRecords, final UUID timelineId) {
+        getClient().retry(TfsRequestPriority.STATE, "updateRecords", new TfsCall<Object>() {
+            public Object call() {
+                getTaskClient().updateRecords(getProjectId(), "build", timelineRecords, getPlanId(), timelineId);
+                return null;
+            }
+        });
     }
 
     private TimelineRecord createTimelineJobRecord() {
@@ -421,6 +687,10 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
         return jobRecordId;
     }
 
+    private UUID getJenkinsRecordId() {
+        return jenkinsRecordId;
+    }
+
     private int getJobLogId() {
         return jobLogId;
     }
@@ -438,4 +708,16 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
     private TaskHttpClient getTaskClient() {
         return getClient().getTaskHttpClient();
     }
+
+    /*
+     * Patches leave out the fields they do not set, null or not: a false or 0 of a primitive field
+     * would otherwise overwrite the value on the server
+     */
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    static final class BuildPatch extends Build {
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    static final class TimelineRecordPatch extends TimelineRecord {
+    }
 }
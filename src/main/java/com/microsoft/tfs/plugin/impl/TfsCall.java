@@ -0,0 +1,11 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+/**
+ * A REST call to TFS, for {@link TfsRetryPolicy}
+ */
+interface TfsCall<T> {
+    T call();
+}
@@ -0,0 +1,232 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.core.Response;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Per server circuit breaker, a filter on every request of every client of the server.
+ *
+ * After a run of failed requests (throttling, server errors, no answer) the breaker opens, and
+ * requests are answered with a local 503 right away instead of waiting on an unhealthy server.
+ * Once the open time, or the Retry-After of the server if longer, has passed a single request goes
+ * through to probe the server, and closes the breaker again if it succeeds.
+ *
+ * The breaker also remembers the status and the Retry-After of the last response on each thread,
+ * for {@link TfsRetryPolicy} to decide about retrying.
+ */
+@Priority(Priorities.USER)
+final class TfsCircuitBreaker implements ClientRequestFilter, ClientResponseFilter {
+
+    private static final Logger logger = Logger.getLogger(TfsCircuitBreaker.class.getName());
+
+    public static final String FAILURE_THRESHOLD_PROPERTY = TfsCircuitBreaker.class.getName() + ".failureThreshold";
+    public static final String OPEN_SECONDS_PROPERTY = TfsCircuitBreaker.class.getName() + ".openSeconds";
+
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    private static final int DEFAULT_OPEN_SECONDS = 30;
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private static final String RETRY_AFTER = "Retry-After";
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+    private static final String RATE_LIMIT_REMAINING = "X-RateLimit-Remaining";
+    private static final String RATE_LIMIT_RESET = "X-RateLimit-Reset";
+
+    /* marks requests answered locally, by the breaker or the rate limiter, which say nothing about the server */
+    static final String LOCAL_RESPONSE_PROPERTY = TfsCircuitBreaker.class.getName() + ".localResponse";
+
+    /* keyed by normalized server url */
+    private static final ConcurrentMap<String, TfsCircuitBreaker> breakers = new ConcurrentHashMap<String, TfsCircuitBreaker>();
+
+    /* status and Retry-After delay of the last response on this thread */
+    private static final ThreadLocal<long[]> lastResponse = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    private final String server;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    /* guarded by this, openUntil and probeStarted are 0 while closed and while no probe is out */
+    private int failures;
+    private long openUntil;
+    private long probeStarted;
+
+    /* default */ TfsCircuitBreaker(String server, int failureThreshold, long openMillis) {
+        this.server = server;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    static TfsCircuitBreaker forServer(String serverUrl) {
+        String server = TfsClientCache.normalizeUrl(serverUrl);
+
+        TfsCircuitBreaker breaker = breakers.get(server);
+        if (breaker == null) {
+            TfsCircuitBreaker created = new TfsCircuitBreaker(server,
+                    Integer.getInteger(FAILURE_THRESHOLD_PROPERTY, DEFAULT_FAILURE_THRESHOLD),
+                    TimeUnit.SECONDS.toMillis(Integer.getInteger(OPEN_SECONDS_PROPERTY, DEFAULT_OPEN_SECONDS)));
+            breaker = breakers.putIfAbsent(server, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+
+        return breaker;
+    }
+
+    /**
+     * @return status of the last response on this thread, 0 if there was none since {@link #clearLastResponse()}
+     */
+    static int getLastStatus() {
+        return (int) lastResponse.get()[0];
+    }
+
+    /**
+     * @return how long the server asked to wait in its last response on this thread, 0 if it did not
+     */
+    static long getLastRetryAfterMillis() {
+        return lastResponse.get()[1];
+    }
+
+    static void clearLastResponse() {
+        long[] last = lastResponse.get();
+        last[0] = 0;
+        last[1] = 0;
+    }
+
+    static boolean isTransient(int status) {
+        return status == TOO_MANY_REQUESTS || status == 500 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * @return true if requests to the server are currently answered by the breaker
+     */
+    synchronized boolean isOpen() {
+        return openUntil != 0 && System.currentTimeMillis() < openUntil;
+    }
+
+    public void filter(ClientRequestContext requestContext) {
+        long waitMillis;
+        synchronized (this) {
+            if (openUntil == 0) {
+                return;
+            }
+
+            // let one request through to find out whether the server is back, and another one
+            // if that probe got lost without an answer
+            long now = System.currentTimeMillis();
+            if (now >= openUntil && (probeStarted == 0 || now - probeStarted > openMillis)) {
+                probeStarted = now;
+                return;
+            }
+
+            waitMillis = Math.max(0, openUntil - now);
+        }
+
+        requestContext.setProperty(LOCAL_RESPONSE_PROPERTY, Boolean.TRUE);
+        requestContext.abortWith(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(RETRY_AFTER, Math.max(1, TimeUnit.MILLISECONDS.toSeconds(waitMillis)))
+                .build());
+    }
+
+    public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) {
+        int status = responseContext.getStatus();
+        long retryAfterMillis = getRetryAfterMillis(responseContext);
+
+        long[] last = lastResponse.get();
+        last[0] = status;
+        last[1] = retryAfterMillis;
+
+        if (requestContext.getProperty(LOCAL_RESPONSE_PROPERTY) != null) {
+            return;
+        }
+
+        if (isTransient(status)) {
+            failed(retryAfterMillis);
+        } else {
+            succeeded();
+        }
+    }
+
+    /**
+     * Count a request that got no answer at all
+     */
+    void failed() {
+        failed(0);
+    }
+
+    private synchronized void failed(long retryAfterMillis) {
+        failures++;
+        if (probeStarted != 0 || failures >= failureThreshold) {
+            if (openUntil == 0) {
+                logger.warning(String.format("TFS server %s is failing, skipping requests to it for now", server));
+            }
+
+            openUntil = System.currentTimeMillis() + Math.max(openMillis, retryAfterMillis);
+            probeStarted = 0;
+        }
+    }
+
+    private synchronized void succeeded() {
+        if (openUntil != 0) {
+            logger.info(String.format("TFS server %s is answering again", server));
+        }
+
+        failures = 0;
+        openUntil = 0;
+        probeStarted = 0;
+    }
+
+    /*
+     * Retry-After in seconds or as a date, or the reset time of an exhausted rate limit
+     */
+    private static long getRetryAfterMillis(ClientResponseContext responseContext) {
+        String retryAfter = responseContext.getHeaderString(RETRY_AFTER);
+        if (retryAfter != null) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+            } catch (NumberFormatException e) {
+                try {
+                    SimpleDateFormat httpDate = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+                    return Math.max(0, httpDate.parse(retryAfter.trim()).getTime() - System.currentTimeMillis());
+                } catch (ParseException pe) {
+                    return 0;
+                }
+            }
+        }
+
+        String remaining = responseContext.getHeaderString(RATE_LIMIT_REMAINING);
+        String reset = responseContext.getHeaderString(RATE_LIMIT_RESET);
+        if (remaining != null && reset != null) {
+            try {
+                if (Double.parseDouble(remaining.trim()) <= 0) {
+                    long resetMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(reset.trim()));
+                    return Math.max(0, resetMillis - System.currentTimeMillis());
+                }
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        return 0;
+    }
+}
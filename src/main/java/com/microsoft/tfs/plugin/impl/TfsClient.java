@@ -6,6 +6,7 @@ package com.microsoft.tfs.plugin.impl;
 import com.microsoft.teamfoundation.build.webapi.BuildHttpClient;
 import com.microsoft.teamfoundation.core.webapi.CoreHttpClient;
 import com.microsoft.teamfoundation.distributedtask.webapi.TaskHttpClient;
+import com.microsoft.vss.client.core.model.VssServiceException;
 import hudson.Util;
 import hudson.util.Secret;
 import org.apache.http.auth.AuthScope;
@@ -21,9 +22,19 @@ import org.glassfish.jersey.client.ClientConfig;
 import org.glassfish.jersey.client.ClientProperties;
 import org.glassfish.jersey.client.RequestEntityProcessing;
 
+import javax.net.ssl.SSLContext;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
 import java.net.URI;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -40,16 +51,54 @@ public class TfsClient {
     public static final String TRUST_STORE_TYPE_PROPERTY = "trust_store_type";
     public static final String TRUST_MANAGER_FACTORY_ALGORITHM_PROPERTY = "trust_manager_factory_algorithm";
     public static final String SECURITY_PROTOCOL_PROPERTY = "security_protocol";
+    public static final String LOG_COMPRESSION_PROPERTY = "log_compression";
+    public static final String CONNECT_TIMEOUT_SECONDS_PROPERTY = "connect_timeout_seconds";
+    public static final String READ_TIMEOUT_SECONDS_PROPERTY = "read_timeout_seconds";
+
+    private static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 30;
+    private static final int DEFAULT_READ_TIMEOUT_SECONDS = 120;
+
+    private static final String CONNECTION_DATA_PATH = "_apis/connectionData";
+
+    private static final int NON_AUTHORITATIVE_STATUS = 203;
+
+    /**
+     * The server does not accept the credentials, with the authentication scheme of this client at least
+     */
+    public static class AuthenticationFailedException extends VssServiceException {
+        public AuthenticationFailedException(String message) {
+            super(message);
+        }
+    }
 
     private BuildHttpClient buildClient;
     private CoreHttpClient projectClient;
     private TaskHttpClient taskHttpClient;
 
+    private final Client client;
+    private final URI uri;
+    private final String username;
+    private final String credentialsFingerprint;
+    private final TfsCircuitBreaker breaker;
+
+    /* time the credentials were last proven to work, 0 if not or if the server rejected them since */
+    private volatile long validatedMillis;
+
+    /* time of the last request sent through this client, for evicting idle clients from the cache */
+    private volatile long lastUsedMillis = System.currentTimeMillis();
+
+    private final GzipLogUploadInterceptor logCompression =
+            new GzipLogUploadInterceptor("gzip".equalsIgnoreCase(System.getProperty(LOG_COMPRESSION_PROPERTY)));
+
     /*
      * Creating a tfs client
      */
     /* default */ TfsClient(URI uri, TfsClientFactoryImpl.ServiceProvider provider, String username, Secret password) {
-        Client client = getClient(uri, provider, username, password);
+        this.breaker = TfsCircuitBreaker.forServer(uri.toString());
+        this.client = getClient(uri, provider, username, password);
+        this.uri = uri;
+        this.username = username;
+        this.credentialsFingerprint = TfsClientCache.fingerprint(password);
 
         projectClient = new CoreHttpClient(client, uri);
         buildClient = new BuildHttpClient(client, uri);
@@ -77,6 +126,106 @@ public class TfsClient {
         return taskHttpClient;
     }
 
+    /**
+     * Whether log uploads are sent gzip compressed
+     *
+     * Compression is switched off automatically if the server rejects a compressed upload
+     */
+    public boolean isLogCompressionEnabled() {
+        return logCompression.isEnabled();
+    }
+
+    public void setLogCompressionEnabled(boolean enabled) {
+        logCompression.setEnabled(enabled);
+    }
+
+    /**
+     * Prove the server accepts the credentials with a cheap request, instead of listing all projects
+     *
+     * @throws AuthenticationFailedException if the server rejects the credentials
+     * @throws VssServiceException if the server can not be reached or fails otherwise
+     */
+    public void validate() throws VssServiceException {
+        Response response;
+        try {
+            response = client.target(uri).path(CONNECTION_DATA_PATH).request(MediaType.APPLICATION_JSON_TYPE).get();
+        } catch (ProcessingException e) {
+            throw new VssServiceException("Could not connect to " + uri + ": " + e.getMessage());
+        }
+
+        try {
+            // hosted servers answer rejected credentials with a 203 sign in page or a redirect to one,
+            // so only a json 200 counts
+            MediaType type = response.getMediaType();
+            if (response.getStatus() == Response.Status.UNAUTHORIZED.getStatusCode()
+                    || response.getStatus() == NON_AUTHORITATIVE_STATUS
+                    || (response.getStatus() == Response.Status.OK.getStatusCode()
+                        && (type == null || !MediaType.APPLICATION_JSON_TYPE.isCompatible(type)))) {
+                throw new AuthenticationFailedException("Server " + uri + " rejected the credentials");
+            }
+
+            if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+                throw new VssServiceException("Server " + uri + " returned " + response.getStatus()
+                        + " " + response.getStatusInfo().getReasonPhrase());
+            }
+        } finally {
+            response.close();
+        }
+
+        validatedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if {@link #validate()} succeeded within the given time and the server has not
+     * rejected the credentials since
+     */
+    public boolean isValidatedWithin(long millis) {
+        long validated = validatedMillis;
+        return validated != 0 && System.currentTimeMillis() - validated < millis;
+    }
+
+    /**
+     * Make an idempotent call, retried with backoff while the server throttles or fails
+     */
+    <T> T retry(TfsRequestPriority priority, String name, TfsCall<T> call) {
+        return TfsRetryPolicy.call(breaker, priority, name, true, call);
+    }
+
+    /**
+     * Make a call that must not be sent twice, skipped while the server is failing
+     */
+    <T> T once(TfsRequestPriority priority, String name, TfsCall<T> call) {
+        return TfsRetryPolicy.call(breaker, priority, name, false, call);
+    }
+
+    /**
+     * @return url of the server
+     */
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * @return user the client signs in as
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return digest of the password the client signs in with, to tell credentials apart
+     */
+    String getCredentialsFingerprint() {
+        return credentialsFingerprint;
+    }
+
+    /**
+     * @return time of the last request sent through this client
+     */
+    public long getLastUsedMillis() {
+        return lastUsedMillis;
+    }
+
     /*
      * Creating a apache http client based JAX-RS client
      */
@@ -115,14 +264,52 @@ public class TfsClient {
 
         clientConfig.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.BUFFERED);
 
-        if (System.getProperty(PROXY_URL_PROPERTY) != null) {
+        // a server that stopped answering must not hold a shipper or a build call forever
+        clientConfig.property(ClientProperties.CONNECT_TIMEOUT, (int) TimeUnit.SECONDS.toMillis(
+                Integer.getInteger(CONNECT_TIMEOUT_SECONDS_PROPERTY, DEFAULT_CONNECT_TIMEOUT_SECONDS)));
+        clientConfig.property(ClientProperties.READ_TIMEOUT, (int) TimeUnit.SECONDS.toMillis(
+                Integer.getInteger(READ_TIMEOUT_SECONDS_PROPERTY, DEFAULT_READ_TIMEOUT_SECONDS)));
+
+        boolean proxied = System.getProperty(PROXY_URL_PROPERTY) != null;
+        if (TfsClientFactoryImpl.ServiceProvider.VSO == provider && !proxied) {
+            // preemptive basic auth never replays a request, log uploads can stream
+            clientConfig.register(new StreamingLogUploadFilter());
+        }
+
+        SSLContext sslContext = SslConfigurator.getDefaultContext();
+        if (proxied) {
             clientConfig.property(ClientProperties.PROXY_URI, System.getProperty(PROXY_URL_PROPERTY));
-            clientConfig.property(ApacheClientProperties.SSL_CONFIG, getSslConfigurator());
+            sslContext = getSslConfigurator().createSSLContext();
         }
 
+        clientConfig.property(ApacheClientProperties.CONNECTION_MANAGER, TfsConnectionPools.get(uri.toString(), sslContext));
+
         clientConfig.property(ApacheClientProperties.CREDENTIALS_PROVIDER, credentialsProvider);
         clientConfig.connectorProvider(new ApacheConnectorProvider());
 
+        clientConfig.register(logCompression);
+        clientConfig.register(breaker);
+        clientConfig.register(TfsRateLimiter.forServer(uri.toString()));
+        clientConfig.register(TfsRequestMetrics.get());
+
+        TfsResponseCache responseCache = TfsResponseCache.create();
+        if (responseCache != null) {
+            clientConfig.register(responseCache);
+        }
+        clientConfig.register(new ClientRequestFilter() {
+            public void filter(ClientRequestContext requestContext) throws IOException {
+                lastUsedMillis = System.currentTimeMillis();
+            }
+        });
+        clientConfig.register(new ClientResponseFilter() {
+            public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) throws IOException {
+                if (responseContext.getStatus() == Response.Status.UNAUTHORIZED.getStatusCode()) {
+                    // have the next getValidatedClient check the credentials again
+                    validatedMillis = 0;
+                }
+            }
+        });
+
         return ClientBuilder.newClient(clientConfig);
     }
 
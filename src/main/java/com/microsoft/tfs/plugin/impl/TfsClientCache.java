@@ -0,0 +1,168 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import hudson.util.Secret;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Plugin wide cache of TFS clients, keyed by server url, username and a fingerprint of the password.
+ *
+ * Reusing clients across builds and form validations saves the Jersey client bootstrap, and along
+ * with the per server {@link TfsConnectionPools} new connections and TLS handshakes.
+ * Clients nobody has sent a request through for the idle timeout are dropped, and so is the client
+ * of a server and user whose password changed.
+ *
+ * Dropped clients are never closed here: a build that still holds one keeps using it until it is
+ * done, and the Jersey runtime of the client is released once the last holder lets go of it and it is
+ * finalized.  Neither closing nor finalizing a client touches the connection pool of its server.
+ */
+final class TfsClientCache {
+
+    private static final Logger logger = Logger.getLogger(TfsClientCache.class.getName());
+
+    public static final String IDLE_TIMEOUT_MINUTES_PROPERTY = TfsClientCache.class.getName() + ".idleTimeoutMinutes";
+
+    private static final long DEFAULT_IDLE_TIMEOUT_MINUTES = 30;
+
+    private static final TfsClientCache instance =
+            new TfsClientCache(TimeUnit.MINUTES.toMillis(Long.getLong(IDLE_TIMEOUT_MINUTES_PROPERTY, DEFAULT_IDLE_TIMEOUT_MINUTES)));
+
+    private final long idleTimeoutMillis;
+
+    /* guarded by this */
+    private final Map<Key, TfsClient> clients = new HashMap<Key, TfsClient>();
+
+    /* default */ TfsClientCache(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    static TfsClientCache get() {
+        return instance;
+    }
+
+    /**
+     * @return the cached client for these credentials, or null
+     */
+    synchronized TfsClient get(String url, String username, Secret password) {
+        evictIdle();
+        return clients.get(new Key(url, username, password));
+    }
+
+    /**
+     * Cache the client, replacing a client of the same server and user with another password
+     */
+    synchronized void put(String url, String username, Secret password, TfsClient client) {
+        evictIdle();
+
+        Key key = new Key(url, username, password);
+        for (Iterator<Key> it = clients.keySet().iterator(); it.hasNext(); ) {
+            Key cached = it.next();
+            if (cached.isSameAccount(key) && !cached.equals(key)) {
+                logger.info("Credentials for " + cached + " changed, dropping its cached client");
+                // not closed, builds that hold it finish with it
+                it.remove();
+            }
+        }
+
+        clients.put(key, client);
+    }
+
+    /**
+     * Forget the client, for example because the server no longer accepts it
+     */
+    synchronized void invalidate(String url, String username, Secret password) {
+        clients.remove(new Key(url, username, password));
+    }
+
+    /**
+     * @return the server url in the form used for keying per server state
+     */
+    static String normalizeUrl(String url) {
+        String normalized = url == null ? "" : url.trim();
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+
+        return normalized.toLowerCase();
+    }
+
+    /**
+     * @return digest of the password, to tell credentials apart without keeping the password
+     */
+    static String fingerprint(Secret password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(Secret.toString(password).getBytes("UTF-8"));
+
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+
+        for (Iterator<Map.Entry<Key, TfsClient>> it = clients.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Key, TfsClient> entry = it.next();
+            if (now - entry.getValue().getLastUsedMillis() > idleTimeoutMillis) {
+                logger.fine("Dropping idle client for " + entry.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    /*
+     * The password itself is not kept, only its digest
+     */
+    private static final class Key {
+        private final String url;
+        private final String username;
+        private final String fingerprint;
+
+        Key(String url, String username, Secret password) {
+            this.url = normalizeUrl(url);
+            this.username = username == null ? "" : username;
+            this.fingerprint = fingerprint(password);
+        }
+
+        boolean isSameAccount(Key other) {
+            return url.equals(other.url) && username.equalsIgnoreCase(other.username);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            return url.equals(other.url) && username.equals(other.username) && fingerprint.equals(other.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return (url.hashCode() * 31 + username.hashCode()) * 31 + fingerprint.hashCode();
+        }
+
+        public String toString() {
+            return username + "@" + url;
+        }
+    }
+}
@@ -9,35 +9,110 @@ import hudson.util.Secret;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 public class TfsClientFactoryImpl implements TfsClientFactory {
 
+    public static final String VALIDATION_TTL_MINUTES_PROPERTY = TfsClientFactoryImpl.class.getName() + ".validationTtlMinutes";
+
+    private static final long DEFAULT_VALIDATION_TTL_MINUTES = 10;
+
+    private static final long validationTtlMillis =
+            TimeUnit.MINUTES.toMillis(Long.getLong(VALIDATION_TTL_MINUTES_PROPERTY, DEFAULT_VALIDATION_TTL_MINUTES));
+
+    /* the scheme each server accepted, keyed by normalized url */
+    private static final ConcurrentMap<String, ServiceProvider> knownProviders = new ConcurrentHashMap<String, ServiceProvider>();
+
     public enum ServiceProvider {
         TFS,
         VSO
     }
 
+    /**
+     * Clients are shared plugin wide, so builds and form validations against the same server reuse
+     * its connections.  A cached client is validated again once the validation is older than the
+     * ttl or the server answered one of its requests with a 401, and dropped if that fails.
+     */
     public TfsClient getValidatedClient(String url, String username, Secret password) throws URISyntaxException, VssServiceException {
+        TfsClientCache cache = TfsClientCache.get();
+
+        TfsClient cached = cache.get(url, username, password);
+        if (cached != null) {
+            if (cached.isValidatedWithin(validationTtlMillis)) {
+                return cached;
+            }
+
+            try {
+                cached.validate();
+                return cached;
+
+            } catch (VssServiceException vse) {
+                cache.invalidate(url, username, password);
+            }
+        }
+
         URI uri = new URI(url);
-        ServiceProvider provider = guessIsHostedInstallation(uri) ? ServiceProvider.VSO : ServiceProvider.TFS;
+        String server = TfsClientCache.normalizeUrl(url);
+
+        ServiceProvider known = getKnownProvider(server);
+        ServiceProvider provider = known;
+        if (provider == null) {
+            provider = guessIsHostedInstallation(uri) ? ServiceProvider.VSO : ServiceProvider.TFS;
+        }
 
         TfsClient client;
         try {
             client = new TfsClient(uri, provider, username, password);
 
             // if this returns without throwing VssServiceException, client is working
-            client.getProjectClient().getProjects();
+            client.validate();
 
         } catch (VssServiceException vse){
+            // a scheme that worked before is only in doubt when the server rejects it
+            if (known != null && !(vse instanceof TfsClient.AuthenticationFailedException)) {
+                throw vse;
+            }
+
             provider = (provider == ServiceProvider.TFS) ? ServiceProvider.VSO : ServiceProvider.TFS;
 
             client = new TfsClient(uri, provider, username, password);
-            client.getProjectClient().getProjects();
+            client.validate();
         }
 
+        rememberProvider(server, provider);
+        cache.put(url, username, password, client);
         return client;
     }
 
+    /*
+     * The scheme the server accepted last time, from memory or from the global configuration
+     */
+    private static ServiceProvider getKnownProvider(String server) {
+        ServiceProvider provider = knownProviders.get(server);
+        if (provider == null) {
+            TfsServiceProviderConfiguration configuration = TfsServiceProviderConfiguration.get();
+            if (configuration != null) {
+                provider = configuration.getServiceProvider(server);
+                if (provider != null) {
+                    knownProviders.put(server, provider);
+                }
+            }
+        }
+
+        return provider;
+    }
+
+    private static void rememberProvider(String server, ServiceProvider provider) {
+        if (knownProviders.put(server, provider) != provider) {
+            TfsServiceProviderConfiguration configuration = TfsServiceProviderConfiguration.get();
+            if (configuration != null) {
+                configuration.setServiceProvider(server, provider);
+            }
+        }
+    }
+
     /*
      * Best educated guess about whether this is a hosted VSO instance
      *
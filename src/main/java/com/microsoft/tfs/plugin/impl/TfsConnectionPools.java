@@ -0,0 +1,188 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * One http connection pool per TFS server, shared by all clients of that server.
+ *
+ * The connector's default pool allows two connections per route, so builds shipping logs to the
+ * same server queued up inside their clients.  Connections idle for longer than the keep alive are
+ * closed by a sweeper, and a pooled connection that sat unused for a while is checked before it
+ * is handed out again.
+ *
+ * The pools live as long as Jenkins.  Clients only get a view of their server's pool that ignores
+ * shutdown, the Jersey connector shuts its connection manager down when its client is closed or
+ * finalized, and that must not take the pool away from the other clients of the server.
+ */
+public final class TfsConnectionPools {
+
+    private static final Logger logger = Logger.getLogger(TfsConnectionPools.class.getName());
+
+    public static final String MAX_PER_ROUTE_PROPERTY = TfsConnectionPools.class.getName() + ".maxPerRoute";
+    public static final String MAX_TOTAL_PROPERTY = TfsConnectionPools.class.getName() + ".maxTotal";
+    public static final String KEEP_ALIVE_SECONDS_PROPERTY = TfsConnectionPools.class.getName() + ".keepAliveSeconds";
+    public static final String VALIDATE_AFTER_INACTIVITY_MILLIS_PROPERTY =
+            TfsConnectionPools.class.getName() + ".validateAfterInactivityMillis";
+
+    private static final int DEFAULT_MAX_PER_ROUTE = 20;
+    private static final int DEFAULT_MAX_TOTAL = 50;
+    private static final int DEFAULT_KEEP_ALIVE_SECONDS = 60;
+    private static final int DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+
+    private static final int maxPerRoute = Integer.getInteger(MAX_PER_ROUTE_PROPERTY, DEFAULT_MAX_PER_ROUTE);
+    private static final int maxTotal = Integer.getInteger(MAX_TOTAL_PROPERTY, DEFAULT_MAX_TOTAL);
+    private static final int keepAliveSeconds = Integer.getInteger(KEEP_ALIVE_SECONDS_PROPERTY, DEFAULT_KEEP_ALIVE_SECONDS);
+    private static final int validateAfterInactivityMillis =
+            Integer.getInteger(VALIDATE_AFTER_INACTIVITY_MILLIS_PROPERTY, DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+    /* keyed by normalized server url */
+    private static final ConcurrentMap<String, PoolingHttpClientConnectionManager> pools =
+            new ConcurrentHashMap<String, PoolingHttpClientConnectionManager>();
+
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "TFS connection pool sweeper");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        long period = Math.max(1, keepAliveSeconds / 2);
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                for (PoolingHttpClientConnectionManager pool : pools.values()) {
+                    pool.closeExpiredConnections();
+                    pool.closeIdleConnections(keepAliveSeconds, TimeUnit.SECONDS);
+                }
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    private TfsConnectionPools() {
+    }
+
+    /**
+     * @param sslContext used for https connections if the pool of the server is created by this call
+     * @return the pool of the server, for one client
+     */
+    static HttpClientConnectionManager get(String serverUrl, SSLContext sslContext) {
+        return new SharedConnectionManager(getPool(serverUrl, sslContext));
+    }
+
+    private static PoolingHttpClientConnectionManager getPool(String serverUrl, SSLContext sslContext) {
+        String server = TfsClientCache.normalizeUrl(serverUrl);
+
+        PoolingHttpClientConnectionManager pool = pools.get(server);
+        if (pool == null) {
+            PoolingHttpClientConnectionManager created = create(sslContext);
+            pool = pools.putIfAbsent(server, created);
+            if (pool == null) {
+                logger.info(String.format("Created connection pool for %s, %d connections per route and %d in total",
+                        server, maxPerRoute, maxTotal));
+                pool = created;
+            } else {
+                created.shutdown();
+            }
+        }
+
+        return pool;
+    }
+
+    /**
+     * @return leased, pending, available and maximum connections of every server's pool
+     */
+    public static Map<String, PoolStats> getStats() {
+        Map<String, PoolStats> stats = new TreeMap<String, PoolStats>();
+        for (Map.Entry<String, PoolingHttpClientConnectionManager> entry : pools.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().getTotalStats());
+        }
+
+        return stats;
+    }
+
+    private static PoolingHttpClientConnectionManager create(SSLContext sslContext) {
+        // a pool given to the connector ignores its ssl settings, so https is set up here
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext))
+                .build();
+
+        PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(registry);
+        pool.setDefaultMaxPerRoute(maxPerRoute);
+        pool.setMaxTotal(Math.max(maxTotal, maxPerRoute));
+        pool.setValidateAfterInactivity(validateAfterInactivityMillis);
+
+        return pool;
+    }
+
+    /*
+     * A client's view of the shared pool, shutting it down only releases the client
+     */
+    private static final class SharedConnectionManager implements HttpClientConnectionManager {
+        private final HttpClientConnectionManager pool;
+
+        SharedConnectionManager(HttpClientConnectionManager pool) {
+            this.pool = pool;
+        }
+
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            return pool.requestConnection(route, state);
+        }
+
+        public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit) {
+            pool.releaseConnection(conn, newState, validDuration, timeUnit);
+        }
+
+        public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context)
+                throws IOException {
+            pool.connect(conn, route, connectTimeout, context);
+        }
+
+        public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+            pool.upgrade(conn, route, context);
+        }
+
+        public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+            pool.routeComplete(conn, route, context);
+        }
+
+        public void closeIdleConnections(long idleTime, TimeUnit timeUnit) {
+            pool.closeIdleConnections(idleTime, timeUnit);
+        }
+
+        public void closeExpiredConnections() {
+            pool.closeExpiredConnections();
+        }
+
+        public void shutdown() {
+            // the pool belongs to every client of the server, the sweeper takes care of its connections
+        }
+    }
+}
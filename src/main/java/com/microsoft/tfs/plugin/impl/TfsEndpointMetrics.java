@@ -0,0 +1,110 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ * Snapshot of the metrics of one TFS endpoint, see {@link TfsRequestMetrics}
+ */
+public class TfsEndpointMetrics {
+    private final String endpoint;
+    private final long requests;
+    private final long noAnswer;
+    private final long retries;
+    private final double meanMillis;
+    private final double p50Millis;
+    private final double p90Millis;
+    private final double p99Millis;
+    private final double maxMillis;
+    private final long requestBytes;
+    private final long responseBytes;
+    private final Map<String, Long> statusCodes;
+
+    @ConstructorProperties({ "endpoint", "requests", "noAnswer", "retries", "meanMillis", "p50Millis", "p90Millis",
+            "p99Millis", "maxMillis", "requestBytes", "responseBytes", "statusCodes" })
+    public TfsEndpointMetrics(String endpoint, long requests, long noAnswer, long retries, double meanMillis,
+                              double p50Millis, double p90Millis, double p99Millis, double maxMillis,
+                              long requestBytes, long responseBytes, Map<String, Long> statusCodes) {
+        this.endpoint = endpoint;
+        this.requests = requests;
+        this.noAnswer = noAnswer;
+        this.retries = retries;
+        this.meanMillis = meanMillis;
+        this.p50Millis = p50Millis;
+        this.p90Millis = p90Millis;
+        this.p99Millis = p99Millis;
+        this.maxMillis = maxMillis;
+        this.requestBytes = requestBytes;
+        this.responseBytes = responseBytes;
+        this.statusCodes = statusCodes;
+    }
+
+    /**
+     * Name of the call, or method and path of requests made outside of one
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Requests answered by the server
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Calls that got no answer at all
+     */
+    public long getNoAnswer() {
+        return noAnswer;
+    }
+
+    public long getRetries() {
+        return retries;
+    }
+
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP90Millis() {
+        return p90Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * Request body bytes as sent, after compression
+     */
+    public long getRequestBytes() {
+        return requestBytes;
+    }
+
+    /**
+     * Response body bytes as given by Content-Length
+     */
+    public long getResponseBytes() {
+        return responseBytes;
+    }
+
+    /**
+     * Number of responses by status, responses of the circuit breaker and the rate limiter as "local 503" and "local 429"
+     */
+    public Map<String, Long> getStatusCodes() {
+        return statusCodes;
+    }
+}
@@ -0,0 +1,84 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import com.microsoft.tfs.plugin.LogBatch;
+import com.microsoft.tfs.plugin.TfsLogDestination;
+
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Appends log batches to TFS logs.
+ *
+ * Used by the build facade while the build runs, and on its own to finish uploads from a log journal
+ * after Jenkins restarted, when there is no facade.
+ */
+public class TfsLogUploader {
+
+    private static final Logger logger = Logger.getLogger(TfsLogUploader.class.getName());
+
+    private final TfsClient client;
+
+    /*
+     * Encoders of prefixed logs by task name
+     */
+    private final ConcurrentMap<String, LogBatchEncoder> encoders = new ConcurrentHashMap<String, LogBatchEncoder>();
+
+    public TfsLogUploader(TfsClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Upload a batch to a log, and retry once uncompressed if the server just refused the compressed upload
+     */
+    public void append(TfsLogDestination destination, LogBatch batch) {
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+
+        boolean compressed = client.isLogCompressionEnabled();
+        try {
+            doAppend(destination, batch);
+        } catch (RuntimeException e) {
+            if (!compressed || client.isLogCompressionEnabled()) {
+                throw e;
+            }
+
+            logger.info("Compressed log upload was rejected, retrying uncompressed");
+            doAppend(destination, batch);
+        }
+    }
+
+    private void doAppend(final TfsLogDestination destination, final LogBatch batch) {
+        // appends are not idempotent, the callers retry from what the server confirmed
+        client.once(TfsRequestPriority.LOG, "appendLog", new TfsCall<Object>() {
+            public Object call() {
+                client.getTaskHttpClient().appendLog(getPayload(destination, batch), destination.getProjectId(),
+                        "build", destination.getPlanId(), destination.getLogId());
+                return null;
+            }
+        });
+    }
+
+    private InputStream getPayload(TfsLogDestination destination, LogBatch batch) {
+        String taskName = destination.getPrefixTaskName();
+        if (taskName == null) {
+            return batch.newInputStream();
+        }
+
+        LogBatchEncoder encoder = encoders.get(taskName);
+        if (encoder == null) {
+            encoder = new LogBatchEncoder(taskName);
+            LogBatchEncoder existing = encoders.putIfAbsent(taskName, encoder);
+            if (existing != null) {
+                encoder = existing;
+            }
+        }
+
+        return encoder.jobLogPayload(batch);
+    }
+}
@@ -0,0 +1,186 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plugin wide cache of TFS metadata that hardly ever changes: team projects, build definitions and
+ * the agent queue builds are queued on, shared by the jobs that use the same server and user.  What
+ * a user may see is up to the server, so values are never shared between users.
+ *
+ * A value is loaded on first use and kept for the time to live.  Once it is past half of that, the
+ * next lookup still gets the cached value, and a background thread loads it again through the
+ * client that asked, so builds do not wait for the refresh.  Values past the time to live are
+ * dropped and loaded again in the foreground.  A call that fails with 404 using cached values is
+ * made once more with the values loaded afresh, as one of them may be gone from the server.
+ */
+final class TfsMetadataCache {
+
+    private static final Logger logger = Logger.getLogger(TfsMetadataCache.class.getName());
+
+    public static final String TTL_MINUTES_PROPERTY = TfsMetadataCache.class.getName() + ".ttlMinutes";
+
+    private static final long DEFAULT_TTL_MINUTES = 30;
+
+    private static final int NOT_FOUND = 404;
+
+    private static final TfsMetadataCache instance =
+            new TfsMetadataCache(TimeUnit.MINUTES.toMillis(Long.getLong(TTL_MINUTES_PROPERTY, DEFAULT_TTL_MINUTES)));
+
+    private static final ExecutorService refresher = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TFS metadata refresher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final long ttlMillis;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /* default */ TfsMetadataCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    static TfsMetadataCache get() {
+        return instance;
+    }
+
+    /**
+     * @return the key of a value as seen by the client's user, such as ("project", projectId)
+     */
+    static String key(TfsClient client, String kind, Object... ids) {
+        String username = client.getUsername() == null ? "" : client.getUsername().toLowerCase();
+        StringBuilder sb = new StringBuilder(TfsClientCache.normalizeUrl(client.getUri().toString()))
+                .append('|').append(username).append('|').append(kind);
+        for (Object id : ids) {
+            sb.append('|').append(id);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @param loader loads the value if it is not cached, a null value is returned but not cached
+     * @return the cached or loaded value
+     */
+    <T> T get(String key, TfsCall<T> loader) {
+        long now = System.currentTimeMillis();
+        evictExpired(now);
+
+        Entry entry = entries.get(key);
+        if (entry == null || ttlMillis <= 0) {
+            return load(key, loader);
+        }
+
+        if (now - entry.loadedMillis > ttlMillis / 2) {
+            refreshInBackground(key, entry, loader);
+        }
+
+        @SuppressWarnings("unchecked")
+        T value = (T) entry.value;
+        return value;
+    }
+
+    /**
+     * Make a call that uses cached values, and make it once more with the values loaded afresh if
+     * the server answers 404
+     *
+     * @param keys of the cached values the call uses
+     */
+    <T> T callRefreshingOnNotFound(String name, TfsCall<T> call, String... keys) {
+        TfsCircuitBreaker.clearLastResponse();
+        try {
+            return call.call();
+        } catch (RuntimeException e) {
+            if (TfsCircuitBreaker.getLastStatus() != NOT_FOUND) {
+                throw e;
+            }
+
+            logger.info(name + " failed with 404, refreshing the cached metadata");
+            for (String key : keys) {
+                invalidate(key);
+            }
+        }
+
+        return call.call();
+    }
+
+    /**
+     * Forget the value, for example because the server answered 404 for it
+     */
+    void invalidate(String key) {
+        if (entries.remove(key) != null) {
+            logger.fine("Invalidated cached TFS metadata " + key);
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private <T> T load(String key, TfsCall<T> loader) {
+        T value = loader.call();
+        if (value != null && ttlMillis > 0) {
+            entries.put(key, new Entry(value, System.currentTimeMillis()));
+        }
+
+        return value;
+    }
+
+    private <T> void refreshInBackground(final String key, final Entry entry, final TfsCall<T> loader) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        refresher.execute(new Runnable() {
+            public void run() {
+                try {
+                    T value = loader.call();
+                    if (value == null) {
+                        entries.remove(key, entry);
+                    } else {
+                        entries.replace(key, entry, new Entry(value, System.currentTimeMillis()));
+                    }
+                } catch (RuntimeException e) {
+                    // keep the value until it expires, the next lookup after that loads it in the foreground
+                    logger.log(Level.FINE, "Could not refresh cached TFS metadata " + key, e);
+                    entry.refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    private void evictExpired(long now) {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().loadedMillis > ttlMillis) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long loadedMillis;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(Object value, long loadedMillis) {
+            this.value = value;
+            this.loadedMillis = loadedMillis;
+        }
+    }
+}
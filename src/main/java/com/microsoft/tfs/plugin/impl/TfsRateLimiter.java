@@ -0,0 +1,180 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Per server request budget shared by all builds, a token bucket every request of every client of
+ * the server draws from.
+ *
+ * Requests wait for a token in the order of their priority: a request waits while one of a higher
+ * priority is waiting, and log requests leave part of the bucket to the others so build state
+ * changes stay timely when logs saturate the budget.  Log requests wait only briefly, they are
+ * answered with a local 429 instead and the log sinks send them again later.
+ *
+ * The limiter runs before the {@link TfsCircuitBreaker}, otherwise the breaker could let the one
+ * request probing a failing server through and the limiter then answer that probe itself.
+ */
+@Priority(Priorities.AUTHORIZATION)
+final class TfsRateLimiter implements ClientRequestFilter {
+
+    private static final Logger logger = Logger.getLogger(TfsRateLimiter.class.getName());
+
+    public static final String REQUESTS_PER_SECOND_PROPERTY = TfsRateLimiter.class.getName() + ".requestsPerSecond";
+    public static final String BURST_PROPERTY = TfsRateLimiter.class.getName() + ".burst";
+
+    private static final int DEFAULT_REQUESTS_PER_SECOND = 100;
+    private static final int DEFAULT_BURST = 200;
+
+    /* share of the bucket log requests leave to the others */
+    private static final double LOG_RESERVE = 0.25;
+
+    private static final long MAX_LOG_WAIT_MILLIS = 100;
+    private static final long MAX_WAIT_MILLIS = 30000;
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /* keyed by normalized server url */
+    private static final ConcurrentMap<String, TfsRateLimiter> limiters = new ConcurrentHashMap<String, TfsRateLimiter>();
+
+    /* priority of the requests made on this thread */
+    private static final ThreadLocal<TfsRequestPriority> priority = new ThreadLocal<TfsRequestPriority>() {
+        @Override
+        protected TfsRequestPriority initialValue() {
+            return TfsRequestPriority.DEFAULT;
+        }
+    };
+
+    private final String server;
+    private final double requestsPerSecond;
+    private final double burst;
+
+    /* guarded by this */
+    private double tokens;
+    private long refilledNanos = System.nanoTime();
+    private final int[] waiting = new int[TfsRequestPriority.values().length];
+
+    /* default */ TfsRateLimiter(String server, double requestsPerSecond, double burst) {
+        this.server = server;
+        this.requestsPerSecond = requestsPerSecond;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+    }
+
+    static TfsRateLimiter forServer(String serverUrl) {
+        String server = TfsClientCache.normalizeUrl(serverUrl);
+
+        TfsRateLimiter limiter = limiters.get(server);
+        if (limiter == null) {
+            TfsRateLimiter created = new TfsRateLimiter(server,
+                    Integer.getInteger(REQUESTS_PER_SECOND_PROPERTY, DEFAULT_REQUESTS_PER_SECOND),
+                    Integer.getInteger(BURST_PROPERTY, DEFAULT_BURST));
+            limiter = limiters.putIfAbsent(server, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+
+        return limiter;
+    }
+
+    /**
+     * Set the priority of the requests made on this thread
+     *
+     * @return the previous priority, to restore when done
+     */
+    static TfsRequestPriority setPriority(TfsRequestPriority requestPriority) {
+        TfsRequestPriority previous = priority.get();
+        priority.set(requestPriority);
+        return previous;
+    }
+
+    public void filter(ClientRequestContext requestContext) {
+        if (requestsPerSecond <= 0) {
+            return;
+        }
+
+        TfsRequestPriority requestPriority = priority.get();
+        long maxWait = requestPriority == TfsRequestPriority.LOG ? MAX_LOG_WAIT_MILLIS : MAX_WAIT_MILLIS;
+
+        long waitMillis;
+        try {
+            waitMillis = acquire(requestPriority, maxWait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            waitMillis = 1;
+        }
+
+        if (waitMillis > 0) {
+            requestContext.setProperty(TfsCircuitBreaker.LOCAL_RESPONSE_PROPERTY, Boolean.TRUE);
+            requestContext.abortWith(Response.status(TOO_MANY_REQUESTS)
+                    .header("Retry-After", Math.max(1, TimeUnit.MILLISECONDS.toSeconds(waitMillis)))
+                    .build());
+        }
+    }
+
+    /**
+     * Take a token, waiting for it at most the given time
+     *
+     * @return 0 if a token was taken, otherwise how long until one would be available
+     */
+    synchronized long acquire(TfsRequestPriority requestPriority, long maxWaitMillis) throws InterruptedException {
+        int level = requestPriority.ordinal();
+        double reserve = requestPriority == TfsRequestPriority.LOG ? burst * LOG_RESERVE : 0;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+        waiting[level]++;
+        try {
+            while (true) {
+                refill();
+
+                if (tokens >= 1 + reserve && !isHigherPriorityWaiting(level)) {
+                    tokens -= 1;
+                    return 0;
+                }
+
+                long untilTokenNanos = (long) ((1 + reserve - tokens) / requestsPerSecond * TimeUnit.SECONDS.toNanos(1));
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    if (level != TfsRequestPriority.LOG.ordinal()) {
+                        logger.warning(String.format("No request budget left for %s after %d ms", server, maxWaitMillis));
+                    }
+                    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(untilTokenNanos));
+                }
+
+                // woken early when tokens are taken by others or a higher priority request is done
+                TimeUnit.NANOSECONDS.timedWait(this, Math.max(TimeUnit.MILLISECONDS.toNanos(1),
+                        Math.min(remainingNanos, untilTokenNanos)));
+            }
+        } finally {
+            waiting[level]--;
+            notifyAll();
+        }
+    }
+
+    private boolean isHigherPriorityWaiting(int level) {
+        for (int i = 0; i < level; i++) {
+            if (waiting[i] > 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledNanos) * requestsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        refilledNanos = now;
+    }
+}
@@ -0,0 +1,230 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import javax.annotation.Priority;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Latency, sizes, status codes and retries of every TFS request, by endpoint.
+ *
+ * Registered as a filter and interceptor on every client.  Requests made by a named call, such as
+ * getPlan or appendLog, are counted under that name, other requests under their method and path
+ * with ids left out.  Published over JMX as com.microsoft.tfs.plugin:type=TfsRequestMetrics and on
+ * the TFS page of Manage Jenkins.
+ *
+ * Requests are timed from when they leave the {@link TfsRateLimiter}, which runs first, so the
+ * latency is the server's and not the time spent waiting for the request budget.
+ */
+@Priority(Priorities.ENTITY_CODER)
+public final class TfsRequestMetrics implements TfsRequestMetricsMXBean, ClientRequestFilter, ClientResponseFilter,
+        WriterInterceptor {
+
+    private static final Logger logger = Logger.getLogger(TfsRequestMetrics.class.getName());
+
+    public static final String OBJECT_NAME = "com.microsoft.tfs.plugin:type=TfsRequestMetrics";
+
+    private static final String START_PROPERTY = TfsRequestMetrics.class.getName() + ".start";
+    private static final String ENDPOINT_PROPERTY = TfsRequestMetrics.class.getName() + ".endpoint";
+    private static final String BYTES_PROPERTY = TfsRequestMetrics.class.getName() + ".bytes";
+
+    /* guids and numbers in paths */
+    private static final Pattern ID_SEGMENT =
+            Pattern.compile("/([0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}|\\d+)(?=/|$)");
+
+    /* name of the call being made on this thread */
+    private static final ThreadLocal<String> currentCall = new ThreadLocal<String>();
+
+    private static final TfsRequestMetrics instance = new TfsRequestMetrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Could not publish TFS request metrics over JMX", e);
+        }
+    }
+
+    private volatile ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+    private TfsRequestMetrics() {
+    }
+
+    public static TfsRequestMetrics get() {
+        return instance;
+    }
+
+    /**
+     * Count the requests made on this thread under the call's name
+     *
+     * @return the previous name, to restore when done
+     */
+    static String setCurrentCall(String name) {
+        String previous = currentCall.get();
+        currentCall.set(name);
+        return previous;
+    }
+
+    void retried(String name) {
+        getEndpoint(name).retries.incrementAndGet();
+    }
+
+    void noAnswer(String name) {
+        getEndpoint(name).noAnswer.incrementAndGet();
+    }
+
+    public List<TfsEndpointMetrics> getEndpoints() {
+        List<TfsEndpointMetrics> snapshot = new ArrayList<TfsEndpointMetrics>();
+        for (Endpoint endpoint : new TreeMap<String, Endpoint>(endpoints).values()) {
+            snapshot.add(endpoint.snapshot());
+        }
+
+        return snapshot;
+    }
+
+    public void reset() {
+        endpoints = new ConcurrentHashMap<String, Endpoint>();
+    }
+
+    public void filter(ClientRequestContext requestContext) {
+        String name = currentCall.get();
+        if (name == null) {
+            name = requestContext.getMethod() + " " + ID_SEGMENT.matcher(requestContext.getUri().getPath()).replaceAll("/{id}");
+        }
+
+        requestContext.setProperty(ENDPOINT_PROPERTY, name);
+        requestContext.setProperty(START_PROPERTY, System.nanoTime());
+    }
+
+    public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) {
+        Object name = requestContext.getProperty(ENDPOINT_PROPERTY);
+        Object start = requestContext.getProperty(START_PROPERTY);
+        Endpoint endpoint = getEndpoint(name != null ? (String) name : currentCall.get());
+
+        if (requestContext.getProperty(TfsCircuitBreaker.LOCAL_RESPONSE_PROPERTY) != null || start == null) {
+            endpoint.countStatus("local " + responseContext.getStatus());
+            return;
+        }
+
+        endpoint.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - (Long) start));
+        endpoint.countStatus(String.valueOf(responseContext.getStatus()));
+
+        Object bytes = requestContext.getProperty(BYTES_PROPERTY);
+        if (bytes != null) {
+            endpoint.requestBytes.addAndGet(((AtomicLong) bytes).get());
+        }
+        if (responseContext.getLength() > 0) {
+            endpoint.responseBytes.addAndGet(responseContext.getLength());
+        }
+    }
+
+    /*
+     * Outermost of the entity coders, so the bytes are counted as they go on the wire
+     */
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        final AtomicLong bytes = new AtomicLong();
+        context.setProperty(BYTES_PROPERTY, bytes);
+        context.setOutputStream(new FilterOutputStream(context.getOutputStream()) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytes.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytes.addAndGet(len);
+            }
+        });
+        context.proceed();
+    }
+
+    private Endpoint getEndpoint(String name) {
+        if (name == null) {
+            name = "unknown";
+        }
+
+        ConcurrentMap<String, Endpoint> current = endpoints;
+        Endpoint endpoint = current.get(name);
+        if (endpoint == null) {
+            Endpoint created = new Endpoint(name);
+            endpoint = current.putIfAbsent(name, created);
+            if (endpoint == null) {
+                endpoint = created;
+            }
+        }
+
+        return endpoint;
+    }
+
+    private static final class Endpoint {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong noAnswer = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong requestBytes = new AtomicLong();
+        private final AtomicLong responseBytes = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> statusCodes = new ConcurrentHashMap<String, AtomicLong>();
+
+        Endpoint(String name) {
+            this.name = name;
+        }
+
+        void countStatus(String status) {
+            AtomicLong count = statusCodes.get(status);
+            if (count == null) {
+                AtomicLong created = new AtomicLong();
+                count = statusCodes.putIfAbsent(status, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+
+            count.incrementAndGet();
+        }
+
+        TfsEndpointMetrics snapshot() {
+            Map<String, Long> statuses = new TreeMap<String, Long>();
+            for (Map.Entry<String, AtomicLong> entry : statusCodes.entrySet()) {
+                statuses.put(entry.getKey(), entry.getValue().get());
+            }
+
+            return new TfsEndpointMetrics(name, latency.getCount(), noAnswer.get(), retries.get(),
+                    millis(latency.getMean()), millis(latency.getPercentile(0.5)), millis(latency.getPercentile(0.9)),
+                    millis(latency.getPercentile(0.99)), millis(latency.getMax()),
+                    requestBytes.get(), responseBytes.get(), statuses);
+        }
+
+        /*
+         * Microseconds to milliseconds, to a tenth
+         */
+        private static double millis(double micros) {
+            return Math.round(micros / 100) / 10.0;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import java.util.List;
+
+/**
+ * JMX view of {@link TfsRequestMetrics}
+ */
+public interface TfsRequestMetricsMXBean {
+
+    List<TfsEndpointMetrics> getEndpoints();
+
+    void reset();
+}
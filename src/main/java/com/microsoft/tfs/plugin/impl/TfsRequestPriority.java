@@ -0,0 +1,18 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+/**
+ * Priority of a TFS request when the server's request budget runs short, see {@link TfsRateLimiter}
+ */
+enum TfsRequestPriority {
+    /* build and timeline state transitions */
+    STATE,
+
+    /* setup calls, lookups and validation */
+    DEFAULT,
+
+    /* bulk log traffic, which the log sinks retry later on their own */
+    LOG
+}
@@ -0,0 +1,252 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import javax.annotation.Priority;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Client side cache of GET responses that carry an ETag, revalidated with If-None-Match.
+ *
+ * The facade reads the same build, timeline records and project metadata over and over, and most
+ * of the time they have not changed.  A cached response is never used without asking the server:
+ * every GET of a cached resource is sent with its ETag, and only when the server answers 304 Not
+ * Modified is the 304 turned into a 200 with the cached body, so the SDK deserializes it as usual.
+ *
+ * Each client has its own cache, so responses are never shared between credentials, but all of
+ * them keep their responses in one store: the least recently used responses of any client are
+ * dropped beyond the entry and total size limits, so clients that are dropped or many servers do not
+ * add up.  Bodies over the entry size limit and responses marked no-store are not cached.  The
+ * response filter runs after the others, so the breaker, the metrics and the retry policy see the
+ * 304 the server actually sent.
+ */
+@Priority(Priorities.HEADER_DECORATOR)
+final class TfsResponseCache implements ClientRequestFilter, ClientResponseFilter {
+
+    private static final Logger logger = Logger.getLogger(TfsResponseCache.class.getName());
+
+    public static final String MAX_ENTRIES_PROPERTY = TfsResponseCache.class.getName() + ".maxEntries";
+    public static final String MAX_ENTRY_KILOBYTES_PROPERTY = TfsResponseCache.class.getName() + ".maxEntryKilobytes";
+    public static final String MAX_TOTAL_KILOBYTES_PROPERTY = TfsResponseCache.class.getName() + ".maxTotalKilobytes";
+
+    private static final int DEFAULT_MAX_ENTRIES = 1024;
+    private static final int DEFAULT_MAX_ENTRY_KILOBYTES = 512;
+    private static final int DEFAULT_MAX_TOTAL_KILOBYTES = 16384;
+
+    private static final String ENTRY_PROPERTY = TfsResponseCache.class.getName() + ".entry";
+    private static final String KEY_PROPERTY = TfsResponseCache.class.getName() + ".key";
+
+    private static final int NOT_MODIFIED = 304;
+
+    private static final Store store = new Store(Integer.getInteger(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES),
+            Integer.getInteger(MAX_TOTAL_KILOBYTES_PROPERTY, DEFAULT_MAX_TOTAL_KILOBYTES) * 1024L);
+
+    private static final AtomicInteger caches = new AtomicInteger();
+
+    private final Store entries;
+    private final int maxEntryBytes;
+
+    /* keeps the entries of this cache apart from those of the other clients */
+    private final String prefix = caches.incrementAndGet() + " ";
+
+    /* default */ TfsResponseCache(Store entries, int maxEntryBytes) {
+        this.entries = entries;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    /**
+     * @return a cache sized by the system properties, or null if caching is switched off
+     */
+    static TfsResponseCache create() {
+        if (store.maxEntries <= 0 || store.maxBytes <= 0) {
+            return null;
+        }
+
+        return new TfsResponseCache(store, Integer.getInteger(MAX_ENTRY_KILOBYTES_PROPERTY, DEFAULT_MAX_ENTRY_KILOBYTES) * 1024);
+    }
+
+    public void filter(ClientRequestContext requestContext) {
+        if (!HttpMethod.GET.equals(requestContext.getMethod())
+                || requestContext.getHeaders().containsKey(HttpHeaders.IF_NONE_MATCH)) {
+            return;
+        }
+
+        String key = prefix + key(requestContext);
+        requestContext.setProperty(KEY_PROPERTY, key);
+
+        CachedResponse entry = entries.get(key);
+
+        if (entry != null) {
+            // keep hold of the entry, it may be dropped by other requests before the answer is in
+            requestContext.setProperty(ENTRY_PROPERTY, entry);
+            requestContext.getHeaders().putSingle(HttpHeaders.IF_NONE_MATCH, entry.etag);
+        }
+    }
+
+    public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) throws IOException {
+        String key = (String) requestContext.getProperty(KEY_PROPERTY);
+        if (key == null) {
+            return;
+        }
+
+        int status = responseContext.getStatus();
+        CachedResponse entry = (CachedResponse) requestContext.getProperty(ENTRY_PROPERTY);
+
+        if (status == NOT_MODIFIED && entry != null) {
+            responseContext.setStatus(Response.Status.OK.getStatusCode());
+            replaceHeader(responseContext.getHeaders(), HttpHeaders.CONTENT_TYPE, entry.contentType);
+            replaceHeader(responseContext.getHeaders(), HttpHeaders.CONTENT_ENCODING, entry.contentEncoding);
+            replaceHeader(responseContext.getHeaders(), HttpHeaders.CONTENT_LENGTH, String.valueOf(entry.body.length));
+            responseContext.setEntityStream(new ByteArrayInputStream(entry.body));
+            return;
+        }
+
+        String etag = responseContext.getHeaderString(HttpHeaders.ETAG);
+        if (status != Response.Status.OK.getStatusCode() || etag == null || isNoStore(responseContext)
+                || responseContext.getLength() > maxEntryBytes) {
+            if (entry != null) {
+                entries.remove(key);
+            }
+            return;
+        }
+
+        InputStream in = responseContext.getEntityStream();
+        if (in == null) {
+            return;
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(Math.max(responseContext.getLength(), 512));
+        byte[] buffer = new byte[8192];
+        int read;
+        while (body.size() <= maxEntryBytes && (read = in.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+
+        if (body.size() > maxEntryBytes) {
+            // too big to keep, hand the part read so far and the rest on to the reader
+            logger.fine("Not caching " + key + ", the response is over " + maxEntryBytes + " bytes");
+            responseContext.setEntityStream(new SequenceInputStream(new ByteArrayInputStream(body.toByteArray()), in));
+            return;
+        }
+
+        in.close();
+        byte[] bytes = body.toByteArray();
+        responseContext.setEntityStream(new ByteArrayInputStream(bytes));
+
+        CachedResponse cached = new CachedResponse(etag, responseContext.getHeaderString(HttpHeaders.CONTENT_TYPE),
+                responseContext.getHeaderString(HttpHeaders.CONTENT_ENCODING), bytes);
+        entries.put(key, cached);
+    }
+
+    /*
+     * The same resource in another representation is another entry
+     */
+    private static String key(ClientRequestContext requestContext) {
+        String accept = requestContext.getHeaderString(HttpHeaders.ACCEPT);
+        return accept == null ? requestContext.getUri().toString() : requestContext.getUri() + " " + accept;
+    }
+
+    private static boolean isNoStore(ClientResponseContext responseContext) {
+        String cacheControl = responseContext.getHeaderString(HttpHeaders.CACHE_CONTROL);
+        return cacheControl != null && cacheControl.toLowerCase().contains("no-store");
+    }
+
+    private static void replaceHeader(MultivaluedMap<String, String> headers, String name, String value) {
+        if (value == null) {
+            headers.remove(name);
+        } else {
+            headers.putSingle(name, value);
+        }
+    }
+
+    /**
+     * Cached responses of all the clients, the least recently used dropped beyond the limits
+     */
+    static final class Store {
+        private final int maxEntries;
+        private final long maxBytes;
+
+        /* guarded by this, in access order */
+        private final Map<String, CachedResponse> entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+        private long bytes;
+
+        /* default */ Store(int maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized CachedResponse get(String key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(String key, CachedResponse response) {
+            remove(key);
+            if (response.body.length > maxBytes) {
+                return;
+            }
+
+            entries.put(key, response);
+            bytes += response.body.length;
+
+            Iterator<CachedResponse> eldest = entries.values().iterator();
+            while (entries.size() > maxEntries || bytes > maxBytes) {
+                bytes -= eldest.next().body.length;
+                eldest.remove();
+            }
+        }
+
+        synchronized void remove(String key) {
+            CachedResponse removed = entries.remove(key);
+            if (removed != null) {
+                bytes -= removed.body.length;
+            }
+        }
+
+        /**
+         * @return number of cached responses
+         */
+        synchronized int size() {
+            return entries.size();
+        }
+
+        /**
+         * @return size of the cached bodies
+         */
+        synchronized long getBytes() {
+            return bytes;
+        }
+    }
+
+    private static final class CachedResponse {
+        final String etag;
+        final String contentType;
+        final String contentEncoding;
+        final byte[] body;
+
+        CachedResponse(String etag, String contentType, String contentEncoding, byte[] body) {
+            this.etag = etag;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.body = body;
+        }
+    }
+}
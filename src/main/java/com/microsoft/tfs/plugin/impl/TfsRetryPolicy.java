@@ -0,0 +1,123 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import com.microsoft.vss.client.core.model.VssServiceException;
+
+import javax.ws.rs.ProcessingException;
+import java.io.IOException;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Retries idempotent TFS calls that failed for a passing reason: throttling, a server error or no
+ * answer at all.
+ *
+ * The delay doubles with every attempt, with a random half of it so builds that failed together do
+ * not come back together, and is at least what the server asked for in Retry-After.  Calls give up
+ * at once while the server's {@link TfsCircuitBreaker} is open, so builds do not wait on a server
+ * that is down.  Calls that are not idempotent, such as creating or appending to a log, are tried
+ * once, but their failures still count for the breaker.
+ */
+final class TfsRetryPolicy {
+
+    private static final Logger logger = Logger.getLogger(TfsRetryPolicy.class.getName());
+
+    public static final String MAX_ATTEMPTS_PROPERTY = TfsRetryPolicy.class.getName() + ".maxAttempts";
+    public static final String BASE_DELAY_MILLIS_PROPERTY = TfsRetryPolicy.class.getName() + ".baseDelayMillis";
+    public static final String MAX_DELAY_MILLIS_PROPERTY = TfsRetryPolicy.class.getName() + ".maxDelayMillis";
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 4;
+    private static final int DEFAULT_BASE_DELAY_MILLIS = 500;
+    private static final int DEFAULT_MAX_DELAY_MILLIS = 30000;
+
+    private static final int maxAttempts = Math.max(1, Integer.getInteger(MAX_ATTEMPTS_PROPERTY, DEFAULT_MAX_ATTEMPTS));
+    private static final long baseDelayMillis = Integer.getInteger(BASE_DELAY_MILLIS_PROPERTY, DEFAULT_BASE_DELAY_MILLIS);
+    private static final long maxDelayMillis = Integer.getInteger(MAX_DELAY_MILLIS_PROPERTY, DEFAULT_MAX_DELAY_MILLIS);
+
+    private static final Random random = new Random();
+
+    private TfsRetryPolicy() {
+    }
+
+    /**
+     * @param priority of the call's requests when the server's request budget runs short
+     * @param idempotent whether the call may be sent again
+     * @throws VssServiceException without calling the server if its breaker is open
+     */
+    static <T> T call(TfsCircuitBreaker breaker, TfsRequestPriority priority, String name, boolean idempotent,
+                      TfsCall<T> call) {
+        TfsRequestPriority previousPriority = TfsRateLimiter.setPriority(priority);
+        String previousCall = TfsRequestMetrics.setCurrentCall(name);
+        try {
+            return call(breaker, name, idempotent ? maxAttempts : 1, call);
+        } finally {
+            TfsRateLimiter.setPriority(previousPriority);
+            TfsRequestMetrics.setCurrentCall(previousCall);
+        }
+    }
+
+    private static <T> T call(TfsCircuitBreaker breaker, String name, int attempts, TfsCall<T> call) {
+        for (int attempt = 1; ; attempt++) {
+            if (breaker.isOpen()) {
+                throw new VssServiceException("Skipped " + name + ", the TFS server is failing");
+            }
+
+            TfsCircuitBreaker.clearLastResponse();
+            try {
+                return call.call();
+
+            } catch (RuntimeException e) {
+                int status = TfsCircuitBreaker.getLastStatus();
+                boolean noAnswer = status == 0 && isNoAnswer(e);
+                if (noAnswer) {
+                    // the breaker has not seen this one
+                    breaker.failed();
+                    TfsRequestMetrics.get().noAnswer(name);
+                }
+
+                if (attempt >= attempts || !(noAnswer || TfsCircuitBreaker.isTransient(status))) {
+                    throw e;
+                }
+
+                long delay = getDelayMillis(attempt, TfsCircuitBreaker.getLastRetryAfterMillis(), random.nextDouble());
+                if (delay > maxDelayMillis) {
+                    throw e;
+                }
+
+                logger.info(String.format("%s failed with %s, retrying in %d ms",
+                        name, noAnswer ? "no answer" : "HTTP " + status, delay));
+                TfsRequestMetrics.get().retried(name);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param jitter between 0 and 1, picks the delay in the upper half of the backoff
+     * @return delay before the next attempt, at least what the server asked for
+     */
+    static long getDelayMillis(int attempt, long retryAfterMillis, double jitter) {
+        long backoff = Math.min(maxDelayMillis, baseDelayMillis << (attempt - 1));
+        return Math.max(retryAfterMillis, backoff / 2 + (long) (jitter * (backoff / 2)));
+    }
+
+    /*
+     * Whether the request never got an answer, as opposed to a bug or an answer we could not read
+     */
+    private static boolean isNoAnswer(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ProcessingException || cause instanceof IOException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
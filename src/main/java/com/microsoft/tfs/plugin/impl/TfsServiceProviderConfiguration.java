@@ -0,0 +1,54 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import hudson.Extension;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The authentication scheme each server accepted, kept in the global configuration so clients
+ * created after a restart go straight to it.
+ *
+ * Nothing to configure here, entries are recorded by {@link TfsClientFactoryImpl}.
+ */
+@Extension
+public class TfsServiceProviderConfiguration extends GlobalConfiguration {
+
+    /* keyed by normalized server url, guarded by this */
+    private Map<String, TfsClientFactoryImpl.ServiceProvider> serviceProviders =
+            new HashMap<String, TfsClientFactoryImpl.ServiceProvider>();
+
+    public TfsServiceProviderConfiguration() {
+        load();
+    }
+
+    /**
+     * @return the configuration, or null when not running inside Jenkins
+     */
+    public static TfsServiceProviderConfiguration get() {
+        if (Jenkins.getInstance() == null) {
+            return null;
+        }
+
+        return GlobalConfiguration.all().get(TfsServiceProviderConfiguration.class);
+    }
+
+    public synchronized TfsClientFactoryImpl.ServiceProvider getServiceProvider(String serverUrl) {
+        return serviceProviders.get(serverUrl);
+    }
+
+    /**
+     * Record the scheme the server accepted, saving the configuration if it changed
+     */
+    public synchronized void setServiceProvider(String serverUrl, TfsClientFactoryImpl.ServiceProvider provider) {
+        if (provider != serviceProviders.get(serverUrl)) {
+            serviceProviders.put(serverUrl, provider);
+            save();
+        }
+    }
+}
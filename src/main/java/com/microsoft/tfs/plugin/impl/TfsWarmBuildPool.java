@@ -0,0 +1,253 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional pool of TFS builds queued ahead of the Jenkins builds that will use them, per server,
+ * credentials, team project, build definition and branch.
+ *
+ * Queueing a build and setting up its timeline records and logs takes about eight requests in a
+ * row, all on the critical path of the Jenkins build's start.  With the pool switched on, a build
+ * claims a facade whose TFS build is already queued (not to run) with its records and logs in place,
+ * and only has to attach itself; the pool queues a replacement in the background.  The first build
+ * of a definition finds the pool empty and sets up its TFS build itself.
+ *
+ * Warm builds show up on TFS as queued builds.  Those not claimed within the idle time are
+ * completed as canceled, and a pool no build claims from any more empties that way.  Those still
+ * in the pool when Jenkins shuts down are canceled too.  A facade is only ever claimed by a build
+ * using the credentials it was set up with, so no job reports through another job's account.
+ */
+final class TfsWarmBuildPool {
+
+    private static final Logger logger = Logger.getLogger(TfsWarmBuildPool.class.getName());
+
+    /*
+     * Warm builds of a Jenkins that stops without shutting down, or does not get to cancel them in
+     * time, stay queued on TFS until canceled there
+     */
+    public static final String SIZE_PROPERTY = TfsWarmBuildPool.class.getName() + ".size";
+    public static final String MAX_IDLE_MINUTES_PROPERTY = TfsWarmBuildPool.class.getName() + ".maxIdleMinutes";
+
+    /* name of the Jenkins task record until a Jenkins build is attached */
+    static final String PLACEHOLDER_TASK_NAME = "Jenkins";
+
+    private static final int DEFAULT_SIZE = 0;
+    private static final long DEFAULT_MAX_IDLE_MINUTES = 30;
+
+    private static final long SHUTDOWN_WAIT_SECONDS = 10;
+
+    private static final TfsWarmBuildPool instance = new TfsWarmBuildPool(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE),
+            TimeUnit.MINUTES.toMillis(Long.getLong(MAX_IDLE_MINUTES_PROPERTY, DEFAULT_MAX_IDLE_MINUTES)));
+
+    private static final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "TFS warm build pool");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        if (instance.isEnabled()) {
+            worker.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    instance.expireIdle(System.currentTimeMillis());
+                }
+            }, 1, 1, TimeUnit.MINUTES);
+        }
+    }
+
+    private final int size;
+    private final long maxIdleMillis;
+
+    private final ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+
+    private volatile boolean shutDown;
+
+    /* default */ TfsWarmBuildPool(int size, long maxIdleMillis) {
+        this.size = size;
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    static TfsWarmBuildPool get() {
+        return instance;
+    }
+
+    boolean isEnabled() {
+        return size > 0 && !shutDown;
+    }
+
+    /**
+     * @return the key of the pool of builds of a definition and branch, set up with the client's credentials
+     */
+    static String key(TfsClient client, String projectId, int buildDefinition, String branch) {
+        return TfsClientCache.normalizeUrl(client.getUri().toString()) + "|" + client.getUsername() + "|"
+                + client.getCredentialsFingerprint() + "|" + projectId + "|" + buildDefinition + "|" + branch;
+    }
+
+    /**
+     * Take a warm facade from the pool and have the pool refilled
+     *
+     * @param creator sets up a facade, called on the pool's thread to refill it
+     * @return a facade no Jenkins build is attached to yet, or null if the pool had none
+     */
+    TfsBuildFacadeImpl claim(String key, TfsCall<TfsBuildFacadeImpl> creator) {
+        Pool pool = pools.get(key);
+        if (pool == null) {
+            Pool created = new Pool(key);
+            pool = pools.putIfAbsent(key, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+
+        // the latest creator, with a client of the same credentials that still works
+        pool.creator = creator;
+
+        long now = System.currentTimeMillis();
+        TfsBuildFacadeImpl facade = null;
+        for (Warm warm = pool.ready.poll(); warm != null; warm = pool.ready.poll()) {
+            if (now - warm.createdMillis <= maxIdleMillis) {
+                facade = warm.facade;
+                break;
+            }
+            cancel(warm);
+        }
+
+        refill(pool);
+        return facade;
+    }
+
+    /**
+     * @return number of warm builds waiting in the pool
+     */
+    int available(String key) {
+        Pool pool = pools.get(key);
+        return pool == null ? 0 : pool.ready.size();
+    }
+
+    private void refill(final Pool pool) {
+        if (shutDown || !pool.refilling.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            worker.execute(new Runnable() {
+                public void run() {
+                    try {
+                        while (pool.ready.size() < size && !shutDown) {
+                            pool.ready.add(new Warm(pool.creator.call(), System.currentTimeMillis()));
+                        }
+                    } catch (RuntimeException e) {
+                        // builds set up their own TFS build until the next claim tries again
+                        logger.log(Level.WARNING, "Could not queue a warm TFS build for " + pool.key, e);
+                    } finally {
+                        pool.refilling.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            pool.refilling.set(false);
+        }
+    }
+
+    /**
+     * Cancel the warm builds no build claimed, giving TFS a few seconds to take the cancellations
+     */
+    void shutDown() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        shutDown = true;
+
+        // after any refill that is running, which sees the shut down and stops
+        worker.execute(new Runnable() {
+            public void run() {
+                for (Pool pool : pools.values()) {
+                    for (Warm warm = pool.ready.poll(); warm != null; warm = pool.ready.poll()) {
+                        cancelNow(warm);
+                    }
+                }
+            }
+        });
+        worker.shutdown();
+
+        try {
+            if (!worker.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warning("Could not cancel all warm TFS builds, those left stay queued on TFS");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void expireIdle(long now) {
+        for (Pool pool : pools.values()) {
+            for (Warm warm : pool.ready) {
+                // whoever removes it owns it, a build may be claiming it right now
+                if (now - warm.createdMillis > maxIdleMillis && pool.ready.remove(warm)) {
+                    cancel(warm);
+                }
+            }
+        }
+    }
+
+    private void cancel(final Warm warm) {
+        try {
+            worker.execute(new Runnable() {
+                public void run() {
+                    cancelNow(warm);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down, the build claiming from the pool waits for this one
+            cancelNow(warm);
+        }
+    }
+
+    private static void cancelNow(Warm warm) {
+        try {
+            warm.facade.cancel();
+            logger.fine("Canceled unused warm TFS build " + warm.facade.getTfsBuildId());
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Could not cancel unused warm TFS build " + warm.facade.getTfsBuildId(), e);
+        }
+    }
+
+    private static final class Pool {
+        final String key;
+        final Queue<Warm> ready = new ConcurrentLinkedQueue<Warm>();
+        final AtomicBoolean refilling = new AtomicBoolean();
+        volatile TfsCall<TfsBuildFacadeImpl> creator;
+
+        Pool(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Warm {
+        final TfsBuildFacadeImpl facade;
+        final long createdMillis;
+
+        Warm(TfsBuildFacadeImpl facade, long createdMillis) {
+            this.facade = facade;
+            this.createdMillis = createdMillis;
+        }
+    }
+}
@@ -3,10 +3,12 @@
 
 package com.microsoft.tfs.plugin.BuildWrapper;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import com.microsoft.tfs.plugin.Notifier.TfsBuildNotifier;
 import com.microsoft.tfs.plugin.TfsBuildFacade;
 import com.microsoft.tfs.plugin.TfsBuildFacadeFactory;
 import com.microsoft.tfs.plugin.TfsClientFactory;
+import com.microsoft.tfs.plugin.TfsLogDestination;
 import com.microsoft.tfs.plugin.impl.TfsClient;
 import hudson.model.AbstractBuild;
 import hudson.model.FreeStyleProject;
@@ -22,6 +24,7 @@ import org.mockito.Mockito;
 import java.io.*;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
@@ -61,6 +64,7 @@ public class TfsBuildWrapperTest {
 
         underTest.setTfsBuildFacadeFactory(facadeFactoryMock);
         underTest.setTfsClientFactory(clientFactoryMock);
+        underTest.setTfsCallExecutor(MoreExecutors.sameThreadExecutor());
 
         when(facadeFactoryMock.createBuildOnTfs(anyString(), anyInt(), any(AbstractBuild.class), any(TfsClient.class)))
                 .thenReturn(buildFacadeMock);
@@ -69,6 +73,8 @@ public class TfsBuildWrapperTest {
                 .thenReturn(tfsClientMock);
 
         when(buildFacadeMock.getTfsBuildId()).thenReturn(1);
+        when(buildFacadeMock.getTaskLogDestination()).thenReturn(new TfsLogDestination(UUID.randomUUID(), UUID.randomUUID(), 1, null));
+        when(buildFacadeMock.getJobLogDestination()).thenReturn(new TfsLogDestination(UUID.randomUUID(), UUID.randomUUID(), 2, "task"));
     }
 
     @After
@@ -0,0 +1,192 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import hudson.console.ConsoleNote;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * The byte path of the appender strips console notes and whitespace like the String path did, and re-encodes
+ * consoles that are not UTF-8 into reused buffers.
+ *
+ * The allocation benchmark compares the byte path with the old decode / removeNotes / trim / encode path, using
+ * the allocation counter of the current thread.  It pushes over a million lines per path and depends on the JVM
+ * and its GC settings, so it only runs when asked for with -Dtfs.benchmarks=true.
+ */
+public class LogLineAllocationTest {
+
+    static final String BENCHMARKS_PROPERTY = "tfs.benchmarks";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private static final int WARMUP_LINES = 200000;
+    private static final int MEASURED_LINES = 1000000;
+    private static final int LINES_PER_BATCH = 1000;
+
+    private static final byte[] PLAIN_LINE =
+            "[INFO] Compiling 42 source files to /var/lib/jenkins/workspace/job/target/classes  \n".getBytes(UTF8);
+    private static final byte[] ANNOTATED_LINE = concat(ConsoleNote.PREAMBLE, "note".getBytes(UTF8),
+            ConsoleNote.POSTAMBLE, "Started by user anonymous\n".getBytes(UTF8));
+
+    private SpillableLogBuffer buffer;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() throws Exception {
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
+
+    @Test
+    public void removeNotesAndTrimMatchesConsoleNote() throws Exception {
+        for (byte[] line : new byte[][] { PLAIN_LINE, ANNOTATED_LINE }) {
+            String expected = ConsoleNote.removeNotes(new String(line, UTF8)).trim();
+
+            byte[] copy = line.clone();
+            int len = TfsRemoteConsoleLogAppender.removeNotesAndTrim(copy, copy.length);
+
+            assertEquals(expected, new String(copy, 0, len, UTF8));
+        }
+    }
+
+    @Test
+    public void transcoderReencodesLinesOfAnyLength() throws Exception {
+        ConsoleLineTranscoder transcoder = new ConsoleLineTranscoder(LATIN1);
+
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longLine.append("\u00e9t\u00e9 ");
+        }
+
+        for (String line : new String[] { "caf\u00e9 cr\u00e8me\n", longLine.toString(), "na\u00efve\n" }) {
+            // the console hands over its line buffer, with room to spare past the line
+            byte[] console = new byte[line.length() + 16];
+            byte[] encoded = line.getBytes(LATIN1);
+            System.arraycopy(encoded, 0, console, 0, encoded.length);
+
+            int len = transcoder.transcode(console, encoded.length);
+
+            assertEquals(line, new String(transcoder.array(), 0, len, UTF8));
+        }
+    }
+
+    @Test
+    public void bytePathIsAllocationFree() throws Exception {
+        com.sun.management.ThreadMXBean threadBean = allocationCounter();
+        buffer = new SpillableLogBuffer(folder.getRoot(), 4 * 1024 * 1024, 16 * 1024 * 1024);
+        LogBatch batch = new LogBatch();
+        byte[] scratch = new byte[256];
+
+        runBytePath(WARMUP_LINES, batch, scratch, null);
+        runStringPath(WARMUP_LINES, batch);
+
+        long start = allocatedBytes(threadBean);
+        runBytePath(MEASURED_LINES, batch, scratch, null);
+        double bytePath = (allocatedBytes(threadBean) - start) / (double) MEASURED_LINES;
+
+        start = allocatedBytes(threadBean);
+        runStringPath(MEASURED_LINES, batch);
+        double stringPath = (allocatedBytes(threadBean) - start) / (double) MEASURED_LINES;
+
+        ConsoleLineTranscoder transcoder = new ConsoleLineTranscoder(LATIN1);
+        runBytePath(WARMUP_LINES, batch, scratch, transcoder);
+        start = allocatedBytes(threadBean);
+        runBytePath(MEASURED_LINES, batch, scratch, transcoder);
+        double transcodedPath = (allocatedBytes(threadBean) - start) / (double) MEASURED_LINES;
+
+        System.out.println(String.format("Allocated bytes per console line: byte path %.2f, "
+                + "byte path of a Latin-1 console %.2f, string path %.2f", bytePath, transcodedPath, stringPath));
+
+        assertTrue("Byte path allocates " + bytePath + " bytes per line", bytePath < 8);
+        assertTrue("Latin-1 byte path allocates " + transcodedPath + " bytes per line", transcodedPath < 8);
+    }
+
+    private void runBytePath(int lines, LogBatch batch, byte[] scratch, ConsoleLineTranscoder transcoder)
+            throws Exception {
+        for (int i = 0; i < lines; i++) {
+            byte[] line = (i & 1) == 0 ? PLAIN_LINE : ANNOTATED_LINE;
+            System.arraycopy(line, 0, scratch, 0, line.length);
+
+            byte[] b = scratch;
+            int len = line.length;
+            if (transcoder != null) {
+                len = transcoder.transcode(b, len);
+                b = transcoder.array();
+            }
+
+            len = TfsRemoteConsoleLogAppender.removeNotesAndTrim(b, len);
+            buffer.add(b, 0, len);
+
+            if (i % LINES_PER_BATCH == LINES_PER_BATCH - 1) {
+                batch.clear();
+                buffer.drainTo(batch, LINES_PER_BATCH, Integer.MAX_VALUE);
+            }
+        }
+    }
+
+    /*
+     * What the appender and the facade used to do for each line
+     */
+    private void runStringPath(int lines, LogBatch batch) throws Exception {
+        for (int i = 0; i < lines; i++) {
+            byte[] line = (i & 1) == 0 ? PLAIN_LINE : ANNOTATED_LINE;
+
+            String s = ConsoleNote.removeNotes(new String(line, 0, line.length, UTF8)).trim();
+            buffer.add(s.getBytes(UTF8));
+
+            if (i % LINES_PER_BATCH == LINES_PER_BATCH - 1) {
+                batch.clear();
+                buffer.drainTo(batch, LINES_PER_BATCH, Integer.MAX_VALUE);
+                batch.toStrings();
+            }
+        }
+    }
+
+    /*
+     * Skips the benchmark unless asked for, or if the JVM does not count the bytes its threads allocate
+     */
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        Assume.assumeTrue(Boolean.getBoolean(BENCHMARKS_PROPERTY));
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        return threadBean;
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threadBean) {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int len = 0;
+        for (byte[] part : parts) {
+            len += part.length;
+        }
+
+        byte[] result = new byte[len];
+        int pos = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, pos, part.length);
+            pos += part.length;
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,301 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class LogRingBufferTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BENCHMARK_LINES = 2000000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void linesComeOutInOrderAcrossLaps() throws Exception {
+        LogRingBuffer ring = new LogRingBuffer(4);
+        Collector collector = new Collector();
+
+        int next = 0;
+        for (int lap = 0; lap < 10; lap++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(ring.offer(line("line " + next), 0, line("line " + next).length));
+                next++;
+            }
+            ring.drainTo(collector, Integer.MAX_VALUE);
+        }
+
+        assertEquals(30, collector.lines.size());
+        for (int i = 0; i < 30; i++) {
+            assertEquals("line " + i, collector.lines.get(i));
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void offerFailsWhenFull() throws Exception {
+        LogRingBuffer ring = new LogRingBuffer(3);
+        assertEquals(4, ring.capacity());
+
+        byte[] line = line("x");
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(line, 0, line.length));
+        }
+        assertFalse(ring.offer(line, 0, line.length));
+
+        Collector collector = new Collector();
+        assertEquals(1, ring.drainTo(collector, 1));
+        assertTrue(ring.offer(line, 0, line.length));
+    }
+
+    @Test
+    public void longLinesAreKept() throws Exception {
+        LogRingBuffer ring = new LogRingBuffer(2);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("long line ");
+        }
+
+        byte[] line = line(sb.toString());
+        ring.offer(line, 0, line.length);
+        ring.offer(line, 0, 4);
+
+        Collector collector = new Collector();
+        ring.drainTo(collector, Integer.MAX_VALUE);
+
+        assertEquals(sb.toString(), collector.lines.get(0));
+        assertEquals("long", collector.lines.get(1));
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentProducersLoseNothing() throws Exception {
+        final LogRingBuffer ring = new LogRingBuffer(64);
+        final int producers = 4;
+        final int linesPerProducer = 50000;
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread t = new Thread() {
+                public void run() {
+                    for (int i = 0; i < linesPerProducer; i++) {
+                        byte[] line = line(producer + ":" + i);
+                        while (!ring.offer(line, 0, line.length)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            // a failed or timed out test must not leave them spinning
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+
+        final int[] next = new int[producers];
+        final int[] total = new int[1];
+        LogRingBuffer.LineHandler checker = new LogRingBuffer.LineHandler() {
+            public void onLine(byte[] b, int off, int len) {
+                String[] parts = new String(b, off, len, UTF8).split(":");
+                int producer = Integer.parseInt(parts[0]);
+                assertEquals(next[producer]++, Integer.parseInt(parts[1]));
+                total[0]++;
+            }
+        };
+
+        while (total[0] < producers * linesPerProducer) {
+            if (ring.drainTo(checker, 100) == 0) {
+                Thread.yield();
+            }
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    /**
+     * Cost of handing a console line from the build thread to the shipper, with a consumer
+     * draining on another thread: the ring against the queue and the buffer it replaces.
+     * Only runs when asked for with -Dtfs.benchmarks=true, see {@link LogLineAllocationTest}.
+     */
+    @Test
+    public void ringHandoffIsCheapAndAllocationFree() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean(LogLineAllocationTest.BENCHMARKS_PROPERTY));
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        final byte[] line = line("[INFO] Compiling 42 source files to /var/lib/jenkins/workspace/job/target/classes");
+
+        Handoff[] handoffs = new Handoff[] { new RingHandoff(), new QueueHandoff(), new BufferHandoff() };
+
+        // warm up all of them first
+        for (Handoff handoff : handoffs) {
+            handoff.run(line, BENCHMARK_LINES / 4, threadBean);
+        }
+
+        double ringBytes = 0;
+        for (Handoff handoff : handoffs) {
+            handoff.run(line, BENCHMARK_LINES, threadBean);
+            System.out.println(String.format("%s handoff: %.1f ns and %.2f allocated bytes per line",
+                    handoff.name, handoff.nanosPerLine, handoff.bytesPerLine));
+
+            if (handoff instanceof RingHandoff) {
+                ringBytes = handoff.bytesPerLine;
+            }
+        }
+
+        assertTrue("Ring handoff allocates " + ringBytes + " bytes per line", ringBytes < 8);
+    }
+
+    private static byte[] line(String s) {
+        return s.getBytes(UTF8);
+    }
+
+    private static final class Collector implements LogRingBuffer.LineHandler {
+        final List<String> lines = new ArrayList<String>();
+
+        public void onLine(byte[] b, int off, int len) {
+            lines.add(new String(b, off, len, UTF8));
+        }
+    }
+
+    /*
+     * One producer on the test thread, one consumer thread draining as fast as it can
+     */
+    private abstract class Handoff {
+        final String name;
+        double nanosPerLine;
+        double bytesPerLine;
+
+        Handoff(String name) {
+            this.name = name;
+        }
+
+        abstract void offer(byte[] line) throws Exception;
+
+        abstract void drain() throws Exception;
+
+        void run(byte[] line, int lines, com.sun.management.ThreadMXBean threadBean) throws Exception {
+            final AtomicBoolean done = new AtomicBoolean();
+            Thread consumer = new Thread() {
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            drain();
+                        }
+                        drain();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            consumer.setDaemon(true);
+            consumer.start();
+
+            long threadId = Thread.currentThread().getId();
+            long allocated = threadBean.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+
+            for (int i = 0; i < lines; i++) {
+                offer(line);
+            }
+
+            nanosPerLine = (System.nanoTime() - start) / (double) lines;
+            bytesPerLine = (threadBean.getThreadAllocatedBytes(threadId) - allocated) / (double) lines;
+
+            done.set(true);
+            consumer.join();
+        }
+    }
+
+    private final class RingHandoff extends Handoff {
+        final LogRingBuffer ring = new LogRingBuffer(4096);
+        final LogRingBuffer.LineHandler ignore = new LogRingBuffer.LineHandler() {
+            public void onLine(byte[] b, int off, int len) {
+            }
+        };
+
+        RingHandoff() {
+            super("Ring buffer");
+        }
+
+        void offer(byte[] line) {
+            while (!ring.offer(line, 0, line.length)) {
+                Thread.yield();
+            }
+        }
+
+        void drain() throws Exception {
+            if (ring.drainTo(ignore, 4096) == 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /*
+     * The handoff of the original appender
+     */
+    private final class QueueHandoff extends Handoff {
+        final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+        final List<byte[]> drained = new ArrayList<byte[]>();
+
+        QueueHandoff() {
+            super("LinkedBlockingQueue");
+        }
+
+        void offer(byte[] line) {
+            queue.offer(line.clone());
+        }
+
+        void drain() {
+            drained.clear();
+            if (queue.drainTo(drained, 4096) == 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /*
+     * Adding to the synchronized spillable buffer straight from the build thread
+     */
+    private final class BufferHandoff extends Handoff {
+        final SpillableLogBuffer buffer;
+        final LogBatch batch = new LogBatch();
+
+        BufferHandoff() throws Exception {
+            super("Synchronized buffer");
+            buffer = new SpillableLogBuffer(folder.newFolder("handoff"), 64 * 1024 * 1024, 16 * 1024 * 1024);
+        }
+
+        void offer(byte[] line) throws Exception {
+            buffer.add(line, 0, line.length);
+        }
+
+        void drain() {
+            batch.clear();
+            if (buffer.drainTo(batch, 4096, Integer.MAX_VALUE) == 0) {
+                Thread.yield();
+            }
+        }
+    }
+}
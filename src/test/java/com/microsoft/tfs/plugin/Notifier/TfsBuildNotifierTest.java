@@ -3,8 +3,10 @@
 
 package com.microsoft.tfs.plugin.Notifier;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import com.microsoft.tfs.plugin.TfsBuildFacade;
 import com.microsoft.tfs.plugin.TfsBuildFacadeFactory;
+import com.microsoft.tfs.plugin.TfsBuildState;
 import com.microsoft.tfs.plugin.TfsClientFactory;
 import com.microsoft.tfs.plugin.impl.TfsClient;
 import hudson.EnvVars;
@@ -20,11 +22,17 @@ import org.mockito.Mockito;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -67,6 +75,7 @@ public class TfsBuildNotifierTest {
 
         underTest.setTfsBuildFacadeFactory(facadeFactoryMock);
         underTest.setTfsClientFactory(clientFactoryMock);
+        underTest.setTfsCallExecutor(MoreExecutors.sameThreadExecutor());
 
         when(facadeFactoryMock.getBuildOnTfs(anyInt(), any(AbstractBuild.class), any(TfsClient.class)))
                 .thenReturn(buildFacadeMock);
@@ -92,4 +101,54 @@ public class TfsBuildNotifierTest {
 
         assertTrue(result);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPerformWithSavedState() throws Exception {
+        TfsBuildState state = new TfsBuildState(1, UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(),
+                UUID.randomUUID(), UUID.randomUUID(), 1, 2, "task");
+        when(jenkinsBuildMock.getAction(TfsBuildState.class)).thenReturn(state);
+        when(facadeFactoryMock.getBuildOnTfs(any(TfsBuildState.class), any(AbstractBuild.class), any(TfsClient.class)))
+                .thenReturn(buildFacadeMock);
+
+        boolean result = underTest.perform(jenkinsBuildMock, null, listenerMock);
+
+        verify(facadeFactoryMock).getBuildOnTfs(same(state), same(jenkinsBuildMock), same(tfsClientMock));
+        verify(facadeFactoryMock, never()).getBuildOnTfs(anyInt(), any(AbstractBuild.class), any(TfsClient.class));
+        verify(buildFacadeMock).finishBuild();
+        verify(buildFacadeMock).finishAllTaskRecords();
+
+        assertTrue(result);
+    }
+
+    @Test
+    public void failedFinishIsReported() throws Exception {
+        doThrow(new RuntimeException("server error")).when(buildFacadeMock).finishAllTaskRecords();
+
+        boolean result = underTest.perform(jenkinsBuildMock, null, listenerMock);
+
+        verify(buildFacadeMock).finishBuild();
+        assertFalse(result);
+    }
+
+    @Test
+    public void emptyOrInvalidLogLimitsMeanDefaults() {
+        TfsBuildNotifier notifier = new TfsBuildNotifier("http://testurl.com", "tester", Secret.fromString("testpass"),
+                "testProj", "1", "", null, "abc", " 250 ");
+
+        assertEquals(0, notifier.getConfig().getLogBatchMaxLines());
+        assertEquals(0, notifier.getConfig().getLogBatchMaxBytes());
+        assertEquals(0, notifier.getConfig().getLogBatchMaxLingerMillis());
+        assertEquals(250, notifier.getConfig().getLogBatchTargetLatencyMillis());
+    }
+
+    @Test
+    public void unsetLogLimitsAreShownEmpty() {
+        TfsBuildNotifier notifier = new TfsBuildNotifier("http://testurl.com", "tester", Secret.fromString("testpass"),
+                "testProj", "1", "", "0", null, "250");
+
+        assertEquals("", notifier.getLogBatchMaxLines());
+        assertEquals("", notifier.getLogBatchMaxBytes());
+        assertEquals("", notifier.getLogBatchMaxLingerMillis());
+        assertEquals("250", notifier.getLogBatchTargetLatencyMillis());
+    }
+}
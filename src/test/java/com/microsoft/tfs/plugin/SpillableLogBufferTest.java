@@ -0,0 +1,155 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class SpillableLogBufferTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    SpillableLogBuffer underTest;
+
+    File spillDir;
+
+    LogBatch batch;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        spillDir = new File(folder.getRoot(), "spill");
+
+        // room for a few lines in tiny heap chunks, tiny segments so we roll over several of them
+        underTest = new SpillableLogBuffer(spillDir, 100, 64, new ByteChunkPool(32, 4));
+        batch = new LogBatch(16, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        underTest.close();
+    }
+
+    @Test
+    public void linesComeOutInOrderAcrossMemoryAndDisk() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            underTest.add(("line " + i).getBytes(UTF8));
+        }
+
+        assertEquals(50, underTest.size());
+        assertTrue("Buffer should have spilled to disk", spillDir.list().length > 0);
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals("line " + i, poll());
+        }
+
+        assertNull(poll());
+        assertTrue(underTest.isEmpty());
+        assertEquals(0, underTest.byteSize());
+        assertEquals("Drained segments should be deleted", 0, spillDir.list().length);
+    }
+
+    @Test
+    public void keepsOrderWhenWritingWhileDraining() throws Exception {
+        int written = 0;
+        int read = 0;
+
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 7; i++) {
+                underTest.add(("line " + written++).getBytes(UTF8));
+            }
+            for (int i = 0; i < 5; i++) {
+                assertEquals("line " + read++, poll());
+            }
+        }
+
+        String line;
+        while ((line = poll()) != null) {
+            assertEquals("line " + read++, line);
+        }
+
+        assertEquals(written, read);
+    }
+
+    @Test
+    public void linesLargerThanSegmentAreKept() throws Exception {
+        String longLine = line(500);
+
+        underTest.add(longLine.getBytes(UTF8));
+        underTest.add("short".getBytes(UTF8));
+
+        assertEquals(longLine, poll());
+        assertEquals("short", poll());
+    }
+
+    @Test
+    public void linesLargerThanAChunkCountInFullAgainstTheHeapCap() throws Exception {
+        underTest.add(line(200).getBytes(UTF8));
+
+        assertTrue("Line bigger than the heap cap should have spilled", spillDir.list().length > 0);
+        assertEquals(line(200), poll());
+    }
+
+    @Test
+    public void spillSegmentGrowsWithItsLines() throws Exception {
+        underTest.close();
+        underTest = new SpillableLogBuffer(spillDir, 0, 1024 * 1024, new ByteChunkPool(32, 4));
+
+        underTest.add("short".getBytes(UTF8));
+        File segment = spillDir.listFiles()[0];
+        assertTrue("Segment should not be mapped in full for one line", segment.length() < 1024 * 1024);
+
+        for (int i = 0; i < 1000; i++) {
+            underTest.add((i + " " + line(100)).getBytes(UTF8));
+        }
+        assertEquals(1, spillDir.list().length);
+
+        assertEquals("short", poll());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i + " " + line(100), poll());
+        }
+        assertNull(poll());
+    }
+
+    @Test
+    public void drainsBatchesUpToTheLimits() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            underTest.add(("line " + i).getBytes(UTF8));
+        }
+
+        assertEquals(4, underTest.drainTo(batch, 4, Integer.MAX_VALUE));
+        assertEquals("line 0\nline 1\nline 2\nline 3\n", new String(batch.array(), 0, batch.byteSize(), UTF8));
+
+        batch.clear();
+        assertEquals(2, underTest.drainTo(batch, 100, 10));
+        assertEquals(4, underTest.size());
+    }
+
+    private String poll() {
+        batch.clear();
+        if (underTest.drainTo(batch, 1, Integer.MAX_VALUE) == 0) {
+            return null;
+        }
+
+        return batch.toStrings().get(0);
+    }
+
+    private static String line(int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.append('x');
+        }
+        return builder.toString();
+    }
+}
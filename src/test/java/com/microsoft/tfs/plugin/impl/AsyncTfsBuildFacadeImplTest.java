@@ -0,0 +1,147 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.microsoft.tfs.plugin.AsyncTfsBuildFacade;
+import com.microsoft.tfs.plugin.TfsBuildFacade;
+import com.microsoft.tfs.plugin.TfsBuildState;
+import com.microsoft.tfs.plugin.TfsLogDestination;
+import hudson.model.AbstractBuild;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class AsyncTfsBuildFacadeImplTest {
+
+    private static final String SERVER = "https://tfs.example.com/tfs/DefaultCollection";
+
+    TfsBuildFacade facadeMock;
+
+    UUID planId;
+
+    @Before
+    public void setUp() {
+        planId = UUID.randomUUID();
+
+        facadeMock = facade(planId);
+    }
+
+    @Test(timeout = 10000)
+    public void callsOfWrapperAndNotifierRunInOrderOnTheBuildsLane() throws Exception {
+        AsyncTfsBuildFacade wrapperFacade = AsyncTfsBuildFacadeImpl.forBuild(facadeMock, SERVER);
+        wrapperFacade.startBuild();
+        wrapperFacade.startAllTaskRecords();
+
+        AsyncTfsBuildFacade notifierFacade = AsyncTfsBuildFacadeImpl.forBuild(facadeMock, SERVER);
+        notifierFacade.finishAllTaskRecords();
+        notifierFacade.finishBuild().get();
+
+        InOrder inOrder = inOrder(facadeMock);
+        inOrder.verify(facadeMock).startBuild();
+        inOrder.verify(facadeMock).startAllTaskRecords();
+        inOrder.verify(facadeMock).finishAllTaskRecords();
+        inOrder.verify(facadeMock).finishBuild();
+    }
+
+    @Test(timeout = 10000)
+    public void stalledServerDoesNotHoldUpTheCallsToOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        Answer<Object> waitForRelease = new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                release.await();
+                return null;
+            }
+        };
+
+        // more stalled builds than the stalled server has workers
+        List<ListenableFuture<Void>> stalled = new ArrayList<ListenableFuture<Void>>();
+        for (int i = 0; i < 3; i++) {
+            TfsBuildFacade stalledMock = facade(UUID.randomUUID());
+            doAnswer(waitForRelease).when(stalledMock).startBuild();
+            stalled.add(AsyncTfsBuildFacadeImpl.forBuild(stalledMock, "https://stalled.example.com/tfs").startBuild());
+        }
+
+        AsyncTfsBuildFacadeImpl.forBuild(facadeMock, SERVER).startBuild().get();
+        verify(facadeMock).startBuild();
+
+        release.countDown();
+        for (ListenableFuture<Void> call : stalled) {
+            call.get();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void failureGoesIntoTheFutureAndLaterCallsStillRun() throws Exception {
+        RuntimeException failure = new RuntimeException("server error");
+        doThrow(failure).when(facadeMock).startBuild();
+
+        AsyncTfsBuildFacade asyncFacade = AsyncTfsBuildFacadeImpl.forBuild(facadeMock, SERVER);
+        try {
+            asyncFacade.startBuild().get();
+            fail("startBuild should have failed");
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+
+        asyncFacade.startAllTaskRecords().get();
+        verify(facadeMock).startAllTaskRecords();
+
+        asyncFacade.finishBuild().get();
+    }
+
+    @Test(timeout = 10000)
+    public void finishBuildReleasesTheLane() throws Exception {
+        int lanes = AsyncTfsBuildFacadeImpl.getLaneCount();
+
+        AsyncTfsBuildFacade asyncFacade = AsyncTfsBuildFacadeImpl.forBuild(facadeMock, SERVER);
+        assertEquals(lanes + 1, AsyncTfsBuildFacadeImpl.getLaneCount());
+
+        asyncFacade.finishBuild().get();
+        assertEquals(lanes, AsyncTfsBuildFacadeImpl.getLaneCount());
+    }
+
+    @Test(timeout = 10000)
+    public void finalizedBuildReleasesTheLaneOfAnUnfinishedBuild() throws Exception {
+        int lanes = AsyncTfsBuildFacadeImpl.getLaneCount();
+
+        AsyncTfsBuildFacade asyncFacade = AsyncTfsBuildFacadeImpl.forBuild(facadeMock, SERVER);
+        asyncFacade.startBuild().get();
+        assertEquals(lanes + 1, AsyncTfsBuildFacadeImpl.getLaneCount());
+
+        AbstractBuild build = mock(AbstractBuild.class);
+        when(build.getAction(TfsBuildState.class)).thenReturn(
+                new TfsBuildState(1, UUID.randomUUID(), planId, null, null, null, 1, 2, "Jenkins"));
+
+        new AsyncTfsBuildFacadeImpl.LaneReleaser().onFinalized(build);
+        assertEquals(lanes, AsyncTfsBuildFacadeImpl.getLaneCount());
+
+        // the lane takes no more calls
+        try {
+            asyncFacade.finishBuild().get();
+            fail("finishBuild should have been rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    private static TfsBuildFacade facade(UUID planId) {
+        TfsBuildFacade facade = mock(TfsBuildFacade.class);
+        when(facade.getTfsBuildId()).thenReturn(1);
+        when(facade.getTaskLogDestination()).thenReturn(new TfsLogDestination(UUID.randomUUID(), planId, 1, null));
+        return facade;
+    }
+}
@@ -0,0 +1,54 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverAllValuesInOrder() {
+        long previous = -1;
+        for (int index = 0; index < 488; index++) {
+            long lowest = LatencyHistogram.lowestValue(index);
+            assertTrue(lowest > previous);
+            assertEquals(index, LatencyHistogram.index(lowest));
+            previous = lowest;
+        }
+
+        assertEquals(487, LatencyHistogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAreWithinAnEighth() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(50000.5, histogram.getMean(), 0.001);
+
+        assertWithinAnEighth(50000, histogram.getPercentile(0.5));
+        assertWithinAnEighth(90000, histogram.getPercentile(0.9));
+        assertWithinAnEighth(99000, histogram.getPercentile(0.99));
+        assertEquals(100000, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getPercentile(0.99));
+        assertEquals(0, histogram.getMean(), 0);
+    }
+
+    private static void assertWithinAnEighth(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / 8);
+    }
+}
@@ -0,0 +1,270 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.teamfoundation.build.webapi.BuildHttpClient;
+import com.microsoft.teamfoundation.build.webapi.model.Build;
+import com.microsoft.teamfoundation.distributedtask.webapi.TaskHttpClient;
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TaskLog;
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TimelineRecord;
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TimelineRecordState;
+import com.microsoft.tfs.plugin.TfsBuildState;
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class TfsBuildFacadeImplTest {
+
+    /* makes the call right away, as a client whose server answers */
+    private static final Answer<Object> CALL = new Answer<Object>() {
+        public Object answer(InvocationOnMock invocation) throws Throwable {
+            return ((TfsCall<?>) invocation.getArguments()[2]).call();
+        }
+    };
+
+    TfsClient clientMock;
+
+    TaskHttpClient taskClientMock;
+
+    BuildHttpClient buildClientMock;
+
+    TfsBuildState state;
+
+    TfsBuildFacadeImpl facade;
+
+    List<Object> patches;
+
+    @Before
+    public void setUp() {
+        taskClientMock = mock(TaskHttpClient.class);
+        buildClientMock = mock(BuildHttpClient.class);
+
+        clientMock = mock(TfsClient.class);
+        when(clientMock.getTaskHttpClient()).thenReturn(taskClientMock);
+        when(clientMock.getBuildClient()).thenReturn(buildClientMock);
+        when(clientMock.once(any(TfsRequestPriority.class), anyString(), any(TfsCall.class))).thenAnswer(CALL);
+        when(clientMock.retry(any(TfsRequestPriority.class), anyString(), any(TfsCall.class))).thenAnswer(CALL);
+
+        // keep what the build and record updates send
+        patches = new ArrayList<Object>();
+        Answer<Object> keepPatch = new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                patches.add(invocation.getArguments()[0] instanceof Build
+                        ? invocation.getArguments()[0] : invocation.getArguments()[2]);
+                return null;
+            }
+        };
+        doAnswer(keepPatch).when(buildClientMock).updateBuild(any(Build.class), any(UUID.class), anyInt());
+        doAnswer(keepPatch).when(taskClientMock).updateRecords(any(UUID.class), anyString(), any(List.class),
+                any(UUID.class), any(UUID.class));
+
+        AbstractBuild jenkinsBuild = mock(AbstractBuild.class);
+        when(jenkinsBuild.getResult()).thenReturn(Result.SUCCESS);
+
+        state = new TfsBuildState(1, UUID.randomUUID(), UUID.randomUUID(), UUID.randomUUID(),
+                UUID.randomUUID(), UUID.randomUUID(), 1, 2, "job #1");
+        facade = new TfsBuildFacadeImpl(state, jenkinsBuild, clientMock);
+    }
+
+    @Test
+    public void startBuildSendsOnlyItsStatusAndTime() throws Exception {
+        facade.startBuild();
+
+        assertFields(patches.get(0), "id", "startTime", "status");
+    }
+
+    @Test
+    public void finishBuildSendsOnlyItsResult() throws Exception {
+        facade.finishBuild();
+
+        assertFields(patches.get(0), "id", "finishTime", "result", "status", "sourceVersion");
+    }
+
+    @Test
+    public void cancelSendsOnlyItsResult() throws Exception {
+        facade.cancel();
+
+        assertFields(patches.get(0), "id", "finishTime", "result", "status");
+    }
+
+    @Test
+    public void startAllTaskRecordsNamesOnlyTheJenkinsRecord() throws Exception {
+        facade.startAllTaskRecords();
+
+        List<?> records = (List<?>) patches.get(0);
+        assertEquals(2, records.size());
+        for (Object record : records) {
+            TimelineRecord timelineRecord = (TimelineRecord) record;
+            if (timelineRecord.getId().equals(state.getJenkinsRecordId())) {
+                assertFields(record, "id", "state", "startTime", "workerName", "name");
+                assertEquals("job #1", timelineRecord.getName());
+            } else {
+                assertEquals(state.getJobRecordId(), timelineRecord.getId());
+                assertFields(record, "id", "state", "startTime", "workerName");
+            }
+        }
+    }
+
+    @Test
+    public void finishAllTaskRecordsSendsOnlyTheirResult() throws Exception {
+        facade.finishAllTaskRecords();
+
+        for (Object record : (List<?>) patches.get(0)) {
+            assertFields(record, "id", "state", "finishTime", "result");
+        }
+    }
+
+    @Test
+    public void finishAllTaskRecordsAlsoFinishesOtherUnfinishedRecords() throws Exception {
+        TimelineRecord added = record(null);
+        added.setState(TimelineRecordState.IN_PROGRESS);
+        TimelineRecord pending = record(null);
+        pending.setState(TimelineRecordState.PENDING);
+        TimelineRecord done = record(null);
+        done.setState(TimelineRecordState.COMPLETED);
+        TimelineRecord jenkins = record(null);
+        jenkins.setId(state.getJenkinsRecordId());
+        jenkins.setState(TimelineRecordState.IN_PROGRESS);
+        when(taskClientMock.getRecords(any(UUID.class), anyString(), any(UUID.class), any(UUID.class)))
+                .thenReturn(Arrays.asList(added, pending, done, jenkins));
+
+        facade.finishAllTaskRecords();
+
+        Set<UUID> finished = new HashSet<UUID>();
+        for (Object record : (List<?>) patches.get(0)) {
+            assertFields(record, "id", "state", "finishTime", "result");
+            assertTrue(finished.add(((TimelineRecord) record).getId()));
+        }
+        assertEquals(new HashSet<UUID>(Arrays.asList(state.getJobRecordId(), state.getJenkinsRecordId(),
+                added.getId(), pending.getId())), finished);
+    }
+
+    @Test
+    public void finishAllTaskRecordsFinishesOursWhenTheTimelineCanNotBeRead() throws Exception {
+        when(taskClientMock.getRecords(any(UUID.class), anyString(), any(UUID.class), any(UUID.class)))
+                .thenThrow(new RuntimeException("server error"));
+
+        facade.finishAllTaskRecords();
+
+        assertEquals(2, ((List<?>) patches.get(0)).size());
+    }
+
+    @Test
+    public void recordsWithALogKeepIt() {
+        TimelineRecord jobRecord = record(new TaskLog());
+        TimelineRecord taskRecord = record(new TaskLog());
+
+        assertFalse(facade.createMissingLogs(jobRecord, taskRecord));
+        verify(taskClientMock, never()).createLog(any(UUID.class), anyString(), any(TaskLog.class), any(UUID.class));
+    }
+
+    @Test
+    public void onlyTheMissingLogIsCreated() {
+        TaskLog jobLog = new TaskLog();
+        TimelineRecord jobRecord = record(jobLog);
+        TimelineRecord taskRecord = record(null);
+
+        TaskLog created = new TaskLog();
+        when(taskClientMock.createLog(any(UUID.class), anyString(), any(TaskLog.class), any(UUID.class))).thenReturn(created);
+
+        assertTrue(facade.createMissingLogs(jobRecord, taskRecord));
+        assertSame(jobLog, jobRecord.getLog());
+        assertSame(created, taskRecord.getLog());
+        verify(taskClientMock, times(1)).createLog(any(UUID.class), anyString(), any(TaskLog.class), any(UUID.class));
+    }
+
+    @Test(timeout = 10000)
+    public void bothLogsAreCreatedAtTheSameTime() {
+        final CountDownLatch bothCalled = new CountDownLatch(2);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        when(taskClientMock.createLog(any(UUID.class), anyString(), any(TaskLog.class), any(UUID.class))).thenAnswer(new Answer<TaskLog>() {
+            public TaskLog answer(InvocationOnMock invocation) throws Throwable {
+                threads.add(Thread.currentThread());
+                bothCalled.countDown();
+
+                // each call waits for the other, made one after the other they would not get here
+                if (!bothCalled.await(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("logs were created one after the other");
+                }
+                return new TaskLog();
+            }
+        });
+
+        TimelineRecord jobRecord = record(null);
+        TimelineRecord taskRecord = record(null);
+
+        assertTrue(facade.createMissingLogs(jobRecord, taskRecord));
+        assertNotNull(jobRecord.getLog());
+        assertNotNull(taskRecord.getLog());
+        assertEquals(2, threads.size());
+    }
+
+    @Test(timeout = 10000)
+    public void failureOfTheTaskRecordsLogIsReported() {
+        final TimelineRecord jobRecord = record(null);
+        final TimelineRecord taskRecord = record(null);
+
+        final RuntimeException taskFailure = new RuntimeException("task log");
+        when(taskClientMock.createLog(any(UUID.class), anyString(), any(TaskLog.class), any(UUID.class))).thenAnswer(new Answer<TaskLog>() {
+            public TaskLog answer(InvocationOnMock invocation) throws Throwable {
+                TaskLog log = (TaskLog) invocation.getArguments()[2];
+                if (log.getPath().endsWith(taskRecord.getId().toString())) {
+                    throw taskFailure;
+                }
+                throw new RuntimeException("job log");
+            }
+        });
+
+        try {
+            facade.createMissingLogs(jobRecord, taskRecord);
+            fail("creating the logs should have failed");
+        } catch (RuntimeException e) {
+            assertSame(taskFailure, e);
+        }
+    }
+
+    /*
+     * The fields that go on the wire, whatever the SDK's JSON provider leaves out itself
+     */
+    private static void assertFields(Object patch, String... expected) {
+        JsonNode json = new ObjectMapper().valueToTree(patch);
+
+        Set<String> fields = new HashSet<String>();
+        for (Iterator<String> it = json.fieldNames(); it.hasNext(); ) {
+            fields.add(it.next());
+        }
+
+        assertEquals(new HashSet<String>(Arrays.asList(expected)), fields);
+    }
+
+    private static TimelineRecord record(TaskLog log) {
+        TimelineRecord record = new TimelineRecord();
+        record.setId(UUID.randomUUID());
+        record.setType("Task");
+        record.setLog(log);
+        return record;
+    }
+}
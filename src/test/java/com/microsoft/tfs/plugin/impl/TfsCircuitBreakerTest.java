@@ -0,0 +1,192 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.core.Response;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class TfsCircuitBreakerTest {
+
+    @Before
+    public void setUp() {
+        TfsCircuitBreaker.clearLastResponse();
+    }
+
+    @Test
+    public void opensAfterTheThresholdOfFailuresInARow() {
+        TfsCircuitBreaker breaker = new TfsCircuitBreaker("server", 3, TimeUnit.MINUTES.toMillis(1));
+
+        respond(breaker, 503);
+        respond(breaker, 500);
+        assertFalse(breaker.isOpen());
+
+        respond(breaker, 429);
+        assertTrue(breaker.isOpen());
+
+        ClientRequestContext request = mock(ClientRequestContext.class);
+        breaker.filter(request);
+        verify(request).setProperty(TfsCircuitBreaker.LOCAL_RESPONSE_PROPERTY, Boolean.TRUE);
+        verify(request).abortWith(any(Response.class));
+    }
+
+    @Test
+    public void successResetsTheFailures() {
+        TfsCircuitBreaker breaker = new TfsCircuitBreaker("server", 3, TimeUnit.MINUTES.toMillis(1));
+
+        respond(breaker, 503);
+        respond(breaker, 503);
+        respond(breaker, 200);
+        respond(breaker, 503);
+        respond(breaker, 503);
+        assertFalse(breaker.isOpen());
+
+        // neither do client errors open it
+        respond(breaker, 404);
+        respond(breaker, 503);
+        assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    public void requestsWithoutAnswerCount() {
+        TfsCircuitBreaker breaker = new TfsCircuitBreaker("server", 2, TimeUnit.MINUTES.toMillis(1));
+
+        breaker.failed();
+        breaker.failed();
+        assertTrue(breaker.isOpen());
+    }
+
+    @Test
+    public void localResponsesDoNotCount() {
+        TfsCircuitBreaker breaker = new TfsCircuitBreaker("server", 1, TimeUnit.MINUTES.toMillis(1));
+
+        ClientRequestContext request = mock(ClientRequestContext.class);
+        when(request.getProperty(TfsCircuitBreaker.LOCAL_RESPONSE_PROPERTY)).thenReturn(Boolean.TRUE);
+        breaker.filter(request, response(503));
+
+        assertFalse(breaker.isOpen());
+        assertEquals(503, TfsCircuitBreaker.getLastStatus());
+    }
+
+    @Test
+    public void onlyOneProbeGoesThroughOnceTheOpenTimeHasPassed() throws Exception {
+        TfsCircuitBreaker breaker = new TfsCircuitBreaker("server", 1, 50);
+        respond(breaker, 503);
+
+        ClientRequestContext early = mock(ClientRequestContext.class);
+        breaker.filter(early);
+        verify(early).abortWith(any(Response.class));
+
+        Thread.sleep(100);
+        assertFalse(breaker.isOpen());
+
+        ClientRequestContext probe = mock(ClientRequestContext.class);
+        breaker.filter(probe);
+        verify(probe, never()).abortWith(any(Response.class));
+
+        ClientRequestContext other = mock(ClientRequestContext.class);
+        breaker.filter(other);
+        verify(other).abortWith(any(Response.class));
+
+        breaker.filter(probe, response(200));
+
+        ClientRequestContext after = mock(ClientRequestContext.class);
+        breaker.filter(after);
+        verify(after, never()).abortWith(any(Response.class));
+    }
+
+    @Test
+    public void failedProbeOpensTheBreakerAgain() throws Exception {
+        TfsCircuitBreaker breaker = new TfsCircuitBreaker("server", 3, 50);
+        respond(breaker, 503);
+        respond(breaker, 503);
+        respond(breaker, 503);
+
+        Thread.sleep(100);
+        ClientRequestContext probe = mock(ClientRequestContext.class);
+        breaker.filter(probe);
+        breaker.filter(probe, response(502));
+
+        assertTrue(breaker.isOpen());
+    }
+
+    @Test
+    public void retryAfterInSecondsKeepsTheBreakerOpenLonger() throws Exception {
+        TfsCircuitBreaker breaker = new TfsCircuitBreaker("server", 1, 50);
+
+        ClientResponseContext response = response(429);
+        when(response.getHeaderString("Retry-After")).thenReturn("7");
+        breaker.filter(mock(ClientRequestContext.class), response);
+
+        assertEquals(7000, TfsCircuitBreaker.getLastRetryAfterMillis());
+
+        Thread.sleep(100);
+        assertTrue(breaker.isOpen());
+    }
+
+    @Test
+    public void retryAfterAsHttpDate() {
+        TfsCircuitBreaker breaker = new TfsCircuitBreaker("server", 5, 50);
+
+        SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        ClientResponseContext response = response(503);
+        when(response.getHeaderString("Retry-After"))
+                .thenReturn(httpDate.format(new Date(System.currentTimeMillis() + 10000)));
+        breaker.filter(mock(ClientRequestContext.class), response);
+
+        long retryAfterMillis = TfsCircuitBreaker.getLastRetryAfterMillis();
+        assertTrue("Retry-After of " + retryAfterMillis + " ms", retryAfterMillis > 8000 && retryAfterMillis <= 10000);
+    }
+
+    @Test
+    public void exhaustedRateLimitWaitsForItsReset() {
+        TfsCircuitBreaker breaker = new TfsCircuitBreaker("server", 5, 50);
+
+        ClientResponseContext response = response(429);
+        when(response.getHeaderString("X-RateLimit-Remaining")).thenReturn("0");
+        when(response.getHeaderString("X-RateLimit-Reset"))
+                .thenReturn(Long.toString(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 20));
+        breaker.filter(mock(ClientRequestContext.class), response);
+
+        long retryAfterMillis = TfsCircuitBreaker.getLastRetryAfterMillis();
+        assertTrue("Retry-After of " + retryAfterMillis + " ms", retryAfterMillis > 18000 && retryAfterMillis <= 20000);
+    }
+
+    @Test
+    public void rateLimitWithRequestsLeftDoesNotWait() {
+        TfsCircuitBreaker breaker = new TfsCircuitBreaker("server", 5, 50);
+
+        ClientResponseContext response = response(200);
+        when(response.getHeaderString("X-RateLimit-Remaining")).thenReturn("10");
+        when(response.getHeaderString("X-RateLimit-Reset"))
+                .thenReturn(Long.toString(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 20));
+        breaker.filter(mock(ClientRequestContext.class), response);
+
+        assertEquals(0, TfsCircuitBreaker.getLastRetryAfterMillis());
+    }
+
+    private static void respond(TfsCircuitBreaker breaker, int status) {
+        breaker.filter(mock(ClientRequestContext.class), response(status));
+    }
+
+    private static ClientResponseContext response(int status) {
+        ClientResponseContext response = mock(ClientResponseContext.class);
+        when(response.getStatus()).thenReturn(status);
+        return response;
+    }
+}
@@ -0,0 +1,78 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TfsConnectionPoolsTest {
+
+    /* nothing listens there, requests only have to get their connection from the pool */
+    private static final String SERVER_URL = "http://127.0.0.1:1";
+
+    @Test
+    public void closedClientLeavesThePoolToTheOthers() throws Exception {
+        Client client = newClient();
+        sendRequest(client);
+        client.close();
+
+        assertPoolLeasesConnections();
+    }
+
+    @Test
+    public void collectedClientLeavesThePoolToTheOthers() throws Exception {
+        sendRequest(newClient());
+
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+
+        assertPoolLeasesConnections();
+    }
+
+    private static Client newClient() throws Exception {
+        ClientConfig clientConfig = new ClientConfig();
+        clientConfig.property(ApacheClientProperties.CONNECTION_MANAGER,
+                TfsConnectionPools.get(SERVER_URL, SSLContext.getDefault()));
+        clientConfig.connectorProvider(new ApacheConnectorProvider());
+
+        return ClientBuilder.newClient(clientConfig);
+    }
+
+    /*
+     * Sets up the client's runtime and connector
+     */
+    private static void sendRequest(Client client) {
+        try {
+            client.target(SERVER_URL).request().get().close();
+        } catch (ProcessingException e) {
+            // connection refused
+        }
+    }
+
+    private static void assertPoolLeasesConnections() throws Exception {
+        HttpClientConnectionManager pool = TfsConnectionPools.get(SERVER_URL, SSLContext.getDefault());
+
+        HttpClientConnection connection = pool.requestConnection(new HttpRoute(new HttpHost("127.0.0.1", 1)), null)
+                .get(10, TimeUnit.SECONDS);
+        assertNotNull(connection);
+
+        pool.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+    }
+}
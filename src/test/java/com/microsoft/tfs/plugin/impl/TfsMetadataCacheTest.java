@@ -0,0 +1,139 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import com.microsoft.vss.client.core.model.VssServiceException;
+import org.junit.Test;
+
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientResponseContext;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TfsMetadataCacheTest {
+
+    @Test
+    public void valueIsLoadedOnceWhileFresh() {
+        TfsMetadataCache cache = new TfsMetadataCache(60000);
+        CountingLoader loader = new CountingLoader("project");
+
+        assertEquals("project 1", cache.get("project", loader));
+        assertEquals("project 1", cache.get("project", loader));
+        assertEquals(1, loader.calls);
+    }
+
+    @Test
+    public void expiredValueIsLoadedAgain() throws Exception {
+        TfsMetadataCache cache = new TfsMetadataCache(100);
+        CountingLoader loader = new CountingLoader("project");
+
+        assertEquals("project 1", cache.get("project", loader));
+        Thread.sleep(150);
+
+        assertEquals("project 2", cache.get("project", loader));
+        assertEquals(2, loader.calls);
+    }
+
+    @Test(timeout = 10000)
+    public void agingValueIsRefreshedInTheBackground() throws Exception {
+        TfsMetadataCache cache = new TfsMetadataCache(2000);
+        CountingLoader loader = new CountingLoader("queue");
+
+        assertEquals("queue 1", cache.get("queue", loader));
+        Thread.sleep(1100);
+
+        // past half of the time to live the cached value is still returned right away
+        assertEquals("queue 1", cache.get("queue", loader));
+
+        String value;
+        do {
+            Thread.sleep(10);
+            value = cache.get("queue", loader);
+        } while ("queue 1".equals(value));
+
+        assertEquals("queue 2", value);
+        assertEquals(2, loader.calls);
+    }
+
+    @Test
+    public void nullIsNotCached() {
+        TfsMetadataCache cache = new TfsMetadataCache(60000);
+        CountingLoader loader = new CountingLoader(null);
+
+        assertNull(cache.get("definition", loader));
+        assertNull(cache.get("definition", loader));
+        assertEquals(2, loader.calls);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void notFoundInvalidatesTheValuesAndCallsAgain() {
+        final TfsMetadataCache cache = new TfsMetadataCache(60000);
+        final CountingLoader projects = new CountingLoader("project");
+        final CountingLoader queues = new CountingLoader("queue");
+        cache.get("project", projects);
+        cache.get("queue", queues);
+
+        String queued = cache.callRefreshingOnNotFound("Queueing a build", new TfsCall<String>() {
+            int calls;
+
+            public String call() {
+                String project = cache.get("project", projects);
+                String queue = cache.get("queue", queues);
+                if (++calls == 1) {
+                    respond(404);
+                    throw new VssServiceException("not found");
+                }
+                return project + " " + queue;
+            }
+        }, "project", "queue");
+
+        assertEquals("project 2 queue 2", queued);
+    }
+
+    @Test
+    public void otherFailuresAreNotCalledAgain() {
+        TfsMetadataCache cache = new TfsMetadataCache(60000);
+        CountingLoader projects = new CountingLoader("project");
+        cache.get("project", projects);
+
+        try {
+            cache.callRefreshingOnNotFound("Queueing a build", new TfsCall<String>() {
+                public String call() {
+                    respond(500);
+                    throw new VssServiceException("server error");
+                }
+            }, "project");
+            fail("call should have failed");
+        } catch (VssServiceException e) {
+            // not retried, and the cached project is kept
+        }
+
+        assertEquals("project 1", cache.get("project", projects));
+    }
+
+    /*
+     * Leave the status for the cache as a response through the breaker would
+     */
+    private static void respond(int status) {
+        ClientResponseContext response = mock(ClientResponseContext.class);
+        when(response.getStatus()).thenReturn(status);
+        new TfsCircuitBreaker("server", 5, 60000).filter(mock(ClientRequestContext.class), response);
+    }
+
+    private static final class CountingLoader implements TfsCall<String> {
+        private final String name;
+        int calls;
+
+        CountingLoader(String name) {
+            this.name = name;
+        }
+
+        public String call() {
+            calls++;
+            return name == null ? null : name + " " + calls;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.annotation.Priority;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class TfsRateLimiterTest {
+
+    @After
+    public void tearDown() {
+        TfsRateLimiter.setPriority(TfsRequestPriority.DEFAULT);
+    }
+
+    @Test
+    public void runsBeforeTheCircuitBreaker() {
+        int limiter = TfsRateLimiter.class.getAnnotation(Priority.class).value();
+        int breaker = TfsCircuitBreaker.class.getAnnotation(Priority.class).value();
+
+        // request filters run in ascending order of priority
+        assertTrue(limiter < breaker);
+    }
+
+    @Test(timeout = 10000)
+    public void logRequestsLeaveTheReserveToTheOthers() throws Exception {
+        TfsRateLimiter limiter = new TfsRateLimiter("server", 1, 8);
+
+        // a quarter of the bucket is kept from logs
+        for (int i = 0; i < 6; i++) {
+            assertEquals(0, limiter.acquire(TfsRequestPriority.LOG, 0));
+        }
+        assertTrue(limiter.acquire(TfsRequestPriority.LOG, 0) > 0);
+
+        assertEquals(0, limiter.acquire(TfsRequestPriority.STATE, 0));
+        assertEquals(0, limiter.acquire(TfsRequestPriority.DEFAULT, 0));
+        assertTrue(limiter.acquire(TfsRequestPriority.STATE, 0) > 0);
+    }
+
+    @Test(timeout = 10000)
+    public void logRequestsGiveUpAfterAShortWait() throws Exception {
+        TfsRateLimiter limiter = new TfsRateLimiter("server", 1, 4);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire(TfsRequestPriority.LOG, 0));
+        }
+
+        TfsRateLimiter.setPriority(TfsRequestPriority.LOG);
+        ClientRequestContext request = mock(ClientRequestContext.class);
+
+        long started = System.currentTimeMillis();
+        limiter.filter(request);
+        long waited = System.currentTimeMillis() - started;
+
+        assertTrue("waited " + waited + " ms", waited >= 90 && waited < 1000);
+        verify(request).setProperty(TfsCircuitBreaker.LOCAL_RESPONSE_PROPERTY, Boolean.TRUE);
+        verify(request).abortWith(any(Response.class));
+    }
+
+    @Test(timeout = 10000)
+    public void higherPriorityRequestsGetTheNextToken() throws Exception {
+        final TfsRateLimiter limiter = new TfsRateLimiter("server", 10, 4);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0, limiter.acquire(TfsRequestPriority.STATE, 0));
+        }
+
+        final List<TfsRequestPriority> acquired = Collections.synchronizedList(new ArrayList<TfsRequestPriority>());
+        Thread log = acquireLater(limiter, TfsRequestPriority.LOG, acquired);
+        Thread other = acquireLater(limiter, TfsRequestPriority.DEFAULT, acquired);
+        Thread.sleep(20);
+        Thread state = acquireLater(limiter, TfsRequestPriority.STATE, acquired);
+
+        log.join();
+        other.join();
+        state.join();
+
+        assertEquals(3, acquired.size());
+        assertEquals(TfsRequestPriority.STATE, acquired.get(0));
+        assertEquals(TfsRequestPriority.DEFAULT, acquired.get(1));
+        assertEquals(TfsRequestPriority.LOG, acquired.get(2));
+    }
+
+    private static Thread acquireLater(final TfsRateLimiter limiter, final TfsRequestPriority priority,
+                                       final List<TfsRequestPriority> acquired) {
+        Thread thread = new Thread("acquire " + priority) {
+            @Override
+            public void run() {
+                try {
+                    if (limiter.acquire(priority, 5000) == 0) {
+                        acquired.add(priority);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,22 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import org.junit.Test;
+
+import javax.annotation.Priority;
+
+import static org.junit.Assert.*;
+
+public class TfsRequestMetricsTest {
+
+    @Test
+    public void startsTheClockAfterTheRateLimiter() {
+        int limiter = TfsRateLimiter.class.getAnnotation(Priority.class).value();
+        int metrics = TfsRequestMetrics.class.getAnnotation(Priority.class).value();
+
+        // request filters run in ascending order of priority
+        assertTrue(limiter < metrics);
+    }
+}
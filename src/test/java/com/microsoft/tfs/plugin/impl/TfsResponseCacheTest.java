@@ -0,0 +1,196 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import org.junit.Test;
+
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TfsResponseCacheTest {
+
+    private static final String BUILD_URL = "https://tfs.example.com/tfs/DefaultCollection/Project/_apis/build/builds/1";
+
+    @Test
+    public void cachedResourceIsAskedForWithItsEtag() throws Exception {
+        TfsResponseCache cache = new TfsResponseCache(new TfsResponseCache.Store(16, 1024), 1024);
+
+        ClientRequestContext first = request(BUILD_URL);
+        cache.filter(first);
+        assertNull(first.getHeaders().getFirst(HttpHeaders.IF_NONE_MATCH));
+        ClientResponseContext firstResponse = response(200, "\"1\"", "{\"id\":1}");
+        cache.filter(first, firstResponse);
+        assertEquals("{\"id\":1}", read(firstResponse.getEntityStream()));
+
+        ClientRequestContext second = request(BUILD_URL);
+        cache.filter(second);
+        assertEquals("\"1\"", second.getHeaders().getFirst(HttpHeaders.IF_NONE_MATCH));
+    }
+
+    @Test
+    public void notModifiedIsAnsweredWithTheCachedBody() throws Exception {
+        TfsResponseCache cache = new TfsResponseCache(new TfsResponseCache.Store(16, 1024), 1024);
+        get(cache, BUILD_URL, response(200, "\"1\"", "{\"id\":1}"));
+
+        ClientRequestContext request = request(BUILD_URL);
+        cache.filter(request);
+        ClientResponseContext notModified = response(304, "\"1\"", null);
+        cache.filter(request, notModified);
+
+        assertEquals(200, notModified.getStatus());
+        assertEquals("application/json", notModified.getHeaders().getFirst(HttpHeaders.CONTENT_TYPE));
+        assertEquals("8", notModified.getHeaders().getFirst(HttpHeaders.CONTENT_LENGTH));
+        assertEquals("{\"id\":1}", read(notModified.getEntityStream()));
+    }
+
+    @Test
+    public void changedResourceReplacesTheCachedOne() throws Exception {
+        TfsResponseCache cache = new TfsResponseCache(new TfsResponseCache.Store(16, 1024), 1024);
+        get(cache, BUILD_URL, response(200, "\"1\"", "{\"id\":1}"));
+        get(cache, BUILD_URL, response(200, "\"2\"", "{\"id\":1,\"result\":\"succeeded\"}"));
+
+        ClientRequestContext request = request(BUILD_URL);
+        cache.filter(request);
+        assertEquals("\"2\"", request.getHeaders().getFirst(HttpHeaders.IF_NONE_MATCH));
+    }
+
+    @Test
+    public void clientsDoNotSeeEachOthersResponses() throws Exception {
+        TfsResponseCache.Store store = new TfsResponseCache.Store(16, 1024);
+        get(new TfsResponseCache(store, 1024), BUILD_URL, response(200, "\"1\"", "{\"id\":1}"));
+
+        ClientRequestContext request = request(BUILD_URL);
+        new TfsResponseCache(store, 1024).filter(request);
+        assertNull(request.getHeaders().getFirst(HttpHeaders.IF_NONE_MATCH));
+    }
+
+    @Test
+    public void totalSizeOfAllClientsIsCapped() throws Exception {
+        TfsResponseCache.Store store = new TfsResponseCache.Store(16, 20);
+        TfsResponseCache cache = new TfsResponseCache(store, 1024);
+        TfsResponseCache other = new TfsResponseCache(store, 1024);
+
+        get(cache, BUILD_URL, response(200, "\"1\"", "0123456789"));
+        get(other, BUILD_URL, response(200, "\"1\"", "0123456789"));
+        assertEquals(2, store.size());
+        assertEquals(20, store.getBytes());
+
+        // the least recently used response makes room
+        get(cache, BUILD_URL + "/timeline", response(200, "\"1\"", "01234"));
+        assertEquals(2, store.size());
+        assertEquals(15, store.getBytes());
+
+        ClientRequestContext request = request(BUILD_URL);
+        cache.filter(request);
+        assertNull(request.getHeaders().getFirst(HttpHeaders.IF_NONE_MATCH));
+
+        // and a response bigger than the whole store is not kept at all
+        get(cache, BUILD_URL + "/logs", response(200, "\"1\"", "0123456789012345678901234"));
+        assertEquals(15, store.getBytes());
+    }
+
+    private static void get(TfsResponseCache cache, String url, ClientResponseContext response) throws IOException {
+        ClientRequestContext request = request(url);
+        cache.filter(request);
+        cache.filter(request, response);
+        read(response.getEntityStream());
+    }
+
+    private static ClientRequestContext request(String url) {
+        final URI uri = URI.create(url);
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        final MultivaluedMap<String, Object> headers = new MultivaluedHashMap<String, Object>();
+        headers.putSingle(HttpHeaders.ACCEPT, "application/json");
+
+        return fake(ClientRequestContext.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getMethod")) {
+                    return "GET";
+                } else if (name.equals("getUri")) {
+                    return uri;
+                } else if (name.equals("getHeaders")) {
+                    return headers;
+                } else if (name.equals("getHeaderString")) {
+                    Object value = headers.getFirst((String) args[0]);
+                    return value != null ? value.toString() : null;
+                } else if (name.equals("getProperty")) {
+                    return properties.get(args[0]);
+                } else if (name.equals("setProperty")) {
+                    properties.put((String) args[0], args[1]);
+                    return null;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private static ClientResponseContext response(final int status, String etag, final String body) {
+        final int[] currentStatus = { status };
+        final InputStream[] entity = { body != null ? new ByteArrayInputStream(body.getBytes()) : null };
+        final MultivaluedMap<String, String> headers = new MultivaluedHashMap<String, String>();
+        headers.putSingle(HttpHeaders.ETAG, etag);
+        if (body != null) {
+            headers.putSingle(HttpHeaders.CONTENT_TYPE, "application/json");
+            headers.putSingle(HttpHeaders.CONTENT_LENGTH, String.valueOf(body.length()));
+        }
+
+        return fake(ClientResponseContext.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getStatus")) {
+                    return currentStatus[0];
+                } else if (name.equals("setStatus")) {
+                    currentStatus[0] = (Integer) args[0];
+                    return null;
+                } else if (name.equals("getHeaders")) {
+                    return headers;
+                } else if (name.equals("getHeaderString")) {
+                    return headers.getFirst((String) args[0]);
+                } else if (name.equals("getLength")) {
+                    String length = headers.getFirst(HttpHeaders.CONTENT_LENGTH);
+                    return length != null ? Integer.parseInt(length) : -1;
+                } else if (name.equals("getEntityStream")) {
+                    return entity[0];
+                } else if (name.equals("setEntityStream")) {
+                    entity[0] = (InputStream) args[0];
+                    return null;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    /*
+     * Contexts that keep the properties, headers and entity set on them, as the filters chain expects
+     */
+    private static <T> T fake(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(TfsResponseCacheTest.class.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString();
+    }
+}
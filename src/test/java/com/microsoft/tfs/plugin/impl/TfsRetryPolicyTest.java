@@ -0,0 +1,83 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.tfs.plugin.impl;
+
+import com.microsoft.vss.client.core.model.VssServiceException;
+import org.junit.Test;
+
+import javax.ws.rs.ProcessingException;
+import java.net.ConnectException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TfsRetryPolicyTest {
+
+    @Test
+    public void backoffDoublesWithARandomHalf() {
+        assertEquals(250, TfsRetryPolicy.getDelayMillis(1, 0, 0));
+        assertEquals(500, TfsRetryPolicy.getDelayMillis(1, 0, 1));
+        assertEquals(500, TfsRetryPolicy.getDelayMillis(2, 0, 0));
+        assertEquals(1500, TfsRetryPolicy.getDelayMillis(3, 0, 0.5));
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        assertEquals(15000, TfsRetryPolicy.getDelayMillis(20, 0, 0));
+        assertEquals(30000, TfsRetryPolicy.getDelayMillis(20, 0, 1));
+    }
+
+    @Test
+    public void serverAskingForLongerWins() {
+        assertEquals(5000, TfsRetryPolicy.getDelayMillis(1, 5000, 1));
+        assertEquals(500, TfsRetryPolicy.getDelayMillis(1, 100, 1));
+    }
+
+    @Test(timeout = 10000)
+    public void requestWithoutAnswerCountsForTheBreaker() {
+        TfsCircuitBreaker breaker = new TfsCircuitBreaker("server", 1, TimeUnit.MINUTES.toMillis(1));
+        CountingCall call = new CountingCall(new ProcessingException(new ConnectException("Connection refused")));
+
+        try {
+            TfsRetryPolicy.call(breaker, TfsRequestPriority.STATE, "get build", true, call);
+            fail("call should have failed");
+        } catch (VssServiceException e) {
+            // retried once the backoff passed, and found the breaker open
+        }
+
+        assertEquals(1, call.calls);
+        assertTrue(breaker.isOpen());
+    }
+
+    @Test(timeout = 10000)
+    public void otherFailuresAreNeitherRetriedNorCounted() {
+        TfsCircuitBreaker breaker = new TfsCircuitBreaker("server", 1, TimeUnit.MINUTES.toMillis(1));
+        IllegalStateException failure = new IllegalStateException("bug");
+        CountingCall call = new CountingCall(failure);
+
+        try {
+            TfsRetryPolicy.call(breaker, TfsRequestPriority.STATE, "get build", true, call);
+            fail("call should have failed");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+
+        assertEquals(1, call.calls);
+        assertFalse(breaker.isOpen());
+    }
+
+    private static final class CountingCall implements TfsCall<Void> {
+        private final RuntimeException failure;
+        int calls;
+
+        CountingCall(RuntimeException failure) {
+            this.failure = failure;
+        }
+
+        public Void call() {
+            calls++;
+            throw failure;
+        }
+    }
+}